@@ -0,0 +1,35 @@
+package ch.epfl.bii.ij2command.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/*
+ *  Mute System.out while a benchmark runs: IJ.log() prints to the console
+ *  when there is no log window.
+ */
+
+public class Console {
+	private static PrintStream saved = null;
+
+	public static synchronized void mute() {
+		if (saved == null) {
+			saved = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+	}
+
+	public static synchronized void restore() {
+		if (saved != null) {
+			System.setOut(saved);
+			saved = null;
+		}
+	}
+}
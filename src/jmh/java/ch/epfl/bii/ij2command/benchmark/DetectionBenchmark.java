@@ -0,0 +1,89 @@
+package ch.epfl.bii.ij2command.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+import ch.epfl.bii.ij2command.TirfTracking.Spots;
+import ch.epfl.bii.ij2command.TirfTracking.TirfTracking;
+import ch.epfl.bii.ij2command.Utils.DogFilter;
+
+// STEP D3 and D6b of TirfTracking on a synthetic movie
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectionBenchmark {
+	@Param({"512"})
+	public int width;
+	@Param({"512"})
+	public int height;
+	@Param({"50"})
+	public int frames;
+	// spots per 100x100 pixels
+	@Param({"2", "5"})
+	public double density;
+	@Param({"1", "4"})
+	public int threads;
+
+	private TirfTracking tracker;
+	private ImagePlus imp;
+	// detection input, as after STEP D3 of the plugin
+	private ImagePlus dog;
+	private Spots[] maxima;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Console.mute();
+		imp = new SyntheticMovie(width, height, frames, density, 42).toImage();
+		tracker = new TirfTracking();
+		tracker.setParallelism(threads);
+		dog = new DogFilter(1, 2, true).filter(imp, threads);
+		// the input of localMaxfilter is detected in its own table, not touched by the invocations
+		maxima = tracker.localMax(dog, 7);
+		tracker.newSpotTable();
+	}
+
+	// localMax adds the maxima to the table of the tracker: a new table at every call,
+	// so the table does not grow from one invocation to the next
+	@Setup(Level.Invocation)
+	public void newTable() {
+		tracker.newSpotTable();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Console.restore();
+	}
+
+	@Benchmark
+	public ImagePlus dog() {
+		return new DogFilter(1, 2, true).filter(imp, threads);
+	}
+
+	@Benchmark
+	public Spots[] localMax() {
+		return tracker.localMax(dog, 7);
+	}
+
+	@Benchmark
+	public Spots[] localMaxfilter() {
+		return tracker.localMaxfilter(dog, maxima, 8);
+	}
+}
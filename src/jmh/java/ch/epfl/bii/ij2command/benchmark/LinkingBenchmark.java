@@ -0,0 +1,127 @@
+package ch.epfl.bii.ij2command.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ij.ImagePlus;
+
+import ch.epfl.bii.ij2command.TirfTracking.Spot;
+import ch.epfl.bii.ij2command.TirfTracking.Spots;
+import ch.epfl.bii.ij2command.TirfTracking.TirfTracking;
+import ch.epfl.bii.ij2command.Utils.LinkCost;
+import ch.epfl.bii.ij2command.Utils.SpotGrid;
+import ch.epfl.bii.ij2command.Utils.StackPixels;
+
+// LINKING of TirfTracking on the ground truth spots of a synthetic movie
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkingBenchmark {
+	@Param({"512"})
+	public int width;
+	@Param({"512"})
+	public int height;
+	@Param({"50"})
+	public int frames;
+	// spots per 100x100 pixels
+	@Param({"2", "5"})
+	public double density;
+	@Param({"false", "true"})
+	public boolean diffuse;
+
+	private static final double LAMBDA = 0.3;
+	private static final double GAMMA = 0.3;
+	// gating radius of the candidates of getCOST()
+	private static final double RADIUS = 8;
+
+	private SyntheticMovie movie;
+	private TirfTracking tracker;
+	private ImagePlus imp;
+	private ImagePlus future;
+	private StackPixels pixels;
+	private StackPixels futurePixels;
+	private LinkCost cost;
+	// new unlinked spots for every call, linkSpots() modifies them
+	private Spots[] spots;
+	private SpotGrid[] grids;
+	private int[] buffer;
+	private int[] ids;
+	private double[] costs;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Console.mute();
+		movie = new SyntheticMovie(width, height, frames, density, 42);
+		imp = movie.toImage();
+		future = movie.toFuture();
+		tracker = new TirfTracking();
+		pixels = new StackPixels(imp);
+		futurePixels = new StackPixels(future);
+		double dmax = Math.sqrt(width*width + height*height);
+		cost = tracker.linkCost(LAMBDA, GAMMA, dmax, tracker.findMax(imp, frames), tracker.findMax(future, frames));
+		buffer = new int[movie.xs[0].length];
+		ids = new int[buffer.length];
+		costs = new double[buffer.length];
+	}
+
+	@Setup(Level.Invocation)
+	public void newSpots() {
+		spots = movie.toSpots();
+		tracker.measureFeatures(pixels, futurePixels, spots);
+		grids = tracker.buildGrids(spots, tracker.densityBound(diffuse));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Console.restore();
+	}
+
+	// STEP L0-L4. Whole linking loop, including the features, the costs and the assignment
+	@Benchmark
+	public Spots[] linkSpots() {
+		tracker.linkSpots(spots, imp, future, LAMBDA, GAMMA, diffuse);
+		return spots;
+	}
+
+	// STEP L1. Local density of every spot for a link to the next frame
+	@Benchmark
+	public void estimateLocalDens(Blackhole bh) {
+		for (int t = 0; t < frames - 1; t++) {
+			for (Spot current : spots[t]) {
+				bh.consume(tracker.estimateLocalDens(current, spots, grids, t, 1, width, height, diffuse, buffer));
+			}
+		}
+	}
+
+	// STEP L2-L3. Costs of every spot to the spots of the next frame closer than RADIUS, in one batch per spot
+	@Benchmark
+	public void getCOST(Blackhole bh) {
+		for (int t = 0; t < frames - 1; t++) {
+			for (Spot current : spots[t]) {
+				int n = grids[t+1].queryRadius(current.x, current.y, RADIUS, buffer);
+				for (int k = 0; k < n; k++) {
+					ids[k] = spots[t+1].get(buffer[k]).getId();
+				}
+				cost.evaluate(current.getTable(), current.getId(), ids, n, costs);
+				bh.consume(costs);
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package ch.epfl.bii.ij2command.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+import ch.epfl.bii.ij2command.TirfTracking.SpotTable;
+import ch.epfl.bii.ij2command.TirfTracking.Spots;
+
+/*
+ *  Synthetic TIRF-like movie for the benchmarks, built without any display.
+ *
+ *  Spots do a random walk of about one pixel per frame on a noisy background.
+ *  The density is given in spots per 100x100 pixels, and the seed makes every
+ *  fork of a benchmark see the same movie.
+ */
+
+public class SyntheticMovie {
+	public final int width;
+	public final int height;
+	public final int frames;
+	// ground truth positions [t][k]
+	public final int[][] xs;
+	public final int[][] ys;
+	private final Random random;
+
+	public SyntheticMovie(int width, int height, int frames, double density, long seed) {
+		this.width = width;
+		this.height = height;
+		this.frames = frames;
+		random = new Random(seed);
+		int nspots = Math.max(1, (int)Math.round(density * width * height / 10000.0));
+		xs = new int[frames][nspots];
+		ys = new int[frames][nspots];
+		int border = 8;
+		for (int k = 0; k < nspots; k++) {
+			int x = border + random.nextInt(Math.max(1, width - 2 * border));
+			int y = border + random.nextInt(Math.max(1, height - 2 * border));
+			for (int t = 0; t < frames; t++) {
+				x = Math.max(border, Math.min(width - border - 1, x + random.nextInt(3) - 1));
+				y = Math.max(border, Math.min(height - border - 1, y + random.nextInt(3) - 1));
+				xs[t][k] = x;
+				ys[t][k] = y;
+			}
+		}
+	}
+
+	// 16-bit stack with Gaussian spots (sigma 1.5) over a Poisson-like background
+	public ImagePlus toImage() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++) {
+			float[] frame = new float[width * height];
+			for (int i = 0; i < frame.length; i++) {
+				frame[i] = 100 + (float)(10 * random.nextGaussian());
+			}
+			for (int k = 0; k < xs[t].length; k++) {
+				for (int dy = -4; dy <= 4; dy++) {
+					for (int dx = -4; dx <= 4; dx++) {
+						int x = xs[t][k] + dx;
+						int y = ys[t][k] + dy;
+						if (x >= 0 && x < width && y >= 0 && y < height) {
+							frame[y * width + x] += 1000 * Math.exp(-(dx * dx + dy * dy) / (2 * 1.5 * 1.5));
+						}
+					}
+				}
+			}
+			ShortProcessor ip = new ShortProcessor(width, height);
+			for (int i = 0; i < frame.length; i++) {
+				ip.set(i, Math.max(0, Math.min(65535, Math.round(frame[i]))));
+			}
+			stack.addSlice(ip);
+		}
+		ImagePlus imp = new ImagePlus("Synthetic movie", stack);
+		imp.setDimensions(1, 1, frames);
+		return imp;
+	}
+
+	// 8-bit orientation map, as the output of TirfTracking.foreseeDirection()
+	public ImagePlus toFuture() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int t = 0; t < frames; t++) {
+			ByteProcessor ip = new ByteProcessor(width, height);
+			for (int i = 0; i < width * height; i++) {
+				ip.set(i, 200 + random.nextInt(56));
+			}
+			// the spots of the next frames are darker
+			for (int s = 1; s <= 5 && t + s < frames; s++) {
+				for (int k = 0; k < xs[t + s].length; k++) {
+					ip.set(xs[t + s][k], ys[t + s][k], 40 * s);
+				}
+			}
+			stack.addSlice(ip);
+		}
+		ImagePlus imp = new ImagePlus("Synthetic orientation map", stack);
+		imp.setDimensions(1, 1, frames);
+		return imp;
+	}
+
+	// unlinked spots at the ground truth positions (a new table at every call)
+	public Spots[] toSpots() {
+		SpotTable table = new SpotTable();
+		Spots[] spots = new Spots[frames];
+		for (int t = 0; t < frames; t++) {
+			spots[t] = new Spots();
+			for (int k = 0; k < xs[t].length; k++) {
+				spots[t].add(table.add(xs[t][k], ys[t][k], t));
+			}
+		}
+		return spots;
+	}
+
+	// ground truth trajectories as lists of {x, y, t}, as traced by TirfTracking
+	public ArrayList<ArrayList<int[]>> toTrajectories() {
+		ArrayList<ArrayList<int[]>> all = new ArrayList<>();
+		for (int k = 0; k < xs[0].length; k++) {
+			ArrayList<int[]> one = new ArrayList<>();
+			for (int t = 0; t < frames; t++) {
+				one.add(new int[] {xs[t][k], ys[t][k], t});
+			}
+			all.add(one);
+		}
+		return all;
+	}
+}
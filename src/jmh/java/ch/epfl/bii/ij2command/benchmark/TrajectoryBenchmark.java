@@ -0,0 +1,92 @@
+package ch.epfl.bii.ij2command.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.epfl.bii.ij2command.TirfTracking.TirfTracking;
+
+// TRAJECTORY ANALYSIS of TirfTracking on the ground truth tracks of a synthetic movie
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrajectoryBenchmark {
+	@Param({"512"})
+	public int width;
+	@Param({"512"})
+	public int height;
+	@Param({"200"})
+	public int frames;
+	// tracks per 100x100 pixels
+	@Param({"2", "5"})
+	public double density;
+
+	private TirfTracking tracker;
+	private ArrayList<ArrayList<int[]>> trajectories;
+	private double[] speeds;
+	private double[] diffCoeffs;
+	private File folder;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Console.mute();
+		tracker = new TirfTracking();
+		trajectories = new SyntheticMovie(width, height, frames, density, 42).toTrajectories();
+		speeds = new double[trajectories.size()];
+		diffCoeffs = new double[trajectories.size()];
+		folder = Files.createTempDirectory("bii-benchmark").toFile();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		deleteAll(folder);
+		Console.restore();
+	}
+
+	// STEP T2
+	@Benchmark
+	public double[] diffusionCalculator() {
+		return tracker.diffusionCalculator(trajectories);
+	}
+
+	// STEP T2
+	@Benchmark
+	public double[] speedCalculator() {
+		return tracker.speedCalculator(trajectories);
+	}
+
+	// STEP T3
+	@Benchmark
+	public void saveCoordinates() throws IOException {
+		tracker.saveCoordinates(trajectories, speeds, diffCoeffs, folder.getPath());
+	}
+
+	private static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+}
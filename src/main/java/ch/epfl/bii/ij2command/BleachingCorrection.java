@@ -17,8 +17,14 @@ import org.scijava.plugin.Plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
+import ij.gui.GenericDialog;
 import ij.measure.CurveFitter;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+
+import ch.epfl.bii.ij2command.Utils.BleachCorrector;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+import ch.epfl.bii.ij2command.Utils.FrameStatistics;
 
 @Plugin(type = Command.class, menuPath = "Plugins>BII 2023>BleachCorrection")
 public class BleachingCorrection implements Command {
@@ -37,35 +43,38 @@ public class BleachingCorrection implements Command {
 	}
 	
 	public void imagecorrection() {
+		GenericDialog gd = new GenericDialog("Bleach correction");
+		gd.addCheckbox("Correct in place (no duplicate)", false);
+		gd.addChoice("Fit on", new String[] {"All pixels", "Foreground", "Background"}, "All pixels");
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return;
+		}
+		boolean inPlace = gd.getNextBoolean();
+		String fiton = gd.getNextChoice();
+		byte[] mask = fiton.equals("All pixels") ? null : fitmask(imp, fiton.equals("Foreground"));
 		// plot the z-intensity profile before processing
 		IJ.run(imp, "Select All", "");
 		IJ.run(imp, "Plot Z-axis Profile", "");
-		IJ.run(imp, "32-bit", "");
 		//IJ.run(imp, "Make Montage...", "columns=8 rows=7 scale=0.25");
 		//IJ.run("Enhance Contrast", "saturated=0.35");
-		ImagePlus out = imp.duplicate();
-		out.show();
 		
 		// Get parameters
-		double[] params = getparameter(imp, nt);
+		double[] params = getparameter(imp, nt, mask);
 		// double A = params[0];
 		double tau = params[1];
 		double C = params[2];
-		for(int t=0; t<nt; t++) {
-			imp.setSlice(t+1);
-			out.setSlice(t+1);
-			ImageProcessor iin = imp.getProcessor();
-			ImageProcessor iout = out.getProcessor();
-			for (int x = 0; x < nx; x++) {
-				for (int y = 0; y < ny; y++) {
-					double new_v = iin.getPixelValue(x, y);
-					new_v = (new_v-C)*Math.exp(t/tau)+C;
-					iout.putPixelValue(x, y, new_v);
-				}
-			}	
-		}
+		// (v-C)*exp(t/tau)+C in 32-bit, one gain per frame and the frames in parallel
+		BleachCorrector corrector = new BleachCorrector(tau, C);
+		ImagePlus out = corrector.correct(imp, inPlace, FrameParallel.getDefaultParallelism());
 		out.setSlice(1);
-		out.setTitle("out");
+		if (inPlace == false) {
+			out.setTitle("out");
+			out.show();
+		}
+		else {
+			out.updateAndDraw();
+		}
 		// plot the z-intensity profile after processing
 		IJ.run(out, "Select All", "");
 		IJ.run(out, "Plot Z-axis Profile", "");
@@ -86,16 +95,18 @@ public class BleachingCorrection implements Command {
 	}
 	
 	public double[] getparameter(ImagePlus imp, int nt) {
-		// find the mean of the 1, nt/2, nt frame
-		double[] mean_stack = new double[3];
-		int[] ind = {0,nt/2,nt-1};
-		for (int i = 0; i < 3; i++) {
-			imp.setSlice(ind[i]+1); // t is one-based
-			double mean = imp.getStatistics().mean;
-			//System.out.println(mean);
-			mean_stack[i] = mean;
+		return getparameter(imp, nt, null);
+	}
+	
+	// fit the whole decay curve: the mean of every frame, read in a single pass over the stack
+	// only the non-zero pixels of mask are measured (null for the whole frame)
+	public double[] getparameter(ImagePlus imp, int nt, byte[] mask) {
+		FrameStatistics stats = FrameStatistics.measure(imp, mask);
+		int[] ind = new int[stats.getSize()];
+		for (int s = 0; s < ind.length; s++) {
+			ind[s] = imp.convertIndexToPosition(s+1)[2]-1; // frame of the slice, zero-based
 		}
-		double[] params = exponentialfit2(ind, mean_stack);
+		double[] params = exponentialfit2(ind, stats.getMean());
 		double A = params[0];
 		double tau = Math.abs(1/params[1]);
 		double C = params[2];
@@ -103,6 +114,20 @@ public class BleachingCorrection implements Command {
 		return new double[]{A, tau, C};
 	}
 	
+	// pixels above (foreground) or below (background) the Default threshold of the first frame
+	private byte[] fitmask(ImagePlus imp, boolean foreground) {
+		ImageProcessor ip = imp.getStack().getProcessor(1);
+		ip.setAutoThreshold(AutoThresholder.Method.Default, true, ImageProcessor.NO_LUT_UPDATE);
+		double lower = ip.getMinThreshold();
+		byte[] mask = new byte[ip.getWidth()*ip.getHeight()];
+		for (int i = 0; i < mask.length; i++) {
+			if ((ip.getf(i) >= lower) == foreground) {
+				mask[i] = (byte)255;
+			}
+		}
+		return mask;
+	}
+	
 	// man() is the entry point of a java code. 
 	// intentionally empty
 	public static void main(final String... args) throws Exception {
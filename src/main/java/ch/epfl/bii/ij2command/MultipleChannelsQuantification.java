@@ -9,23 +9,38 @@ package ch.epfl.bii.ij2command;
  *  The plugin computes the gene expression (in form of fluorescence) of the cytoplasm 
  *  at the very close periphery of every nucleus in a sequence of images. The input should includes two stacks, 
  *  one for nucleus and the other for cytoplasm. The plugin first generates a mask of nucleus 
- *  and then overlays ROIs onto the cytoplasm image. The measured values would be plotted into 
- *  a time vs. intensity scatter plot.
+ *  and then measures a 5-pixel band around every nucleus in the cytoplasm image (on the label 
+ *  image, see Utils/BandMeasurement). The measured values would be plotted into 
+ *  a time vs. intensity scatter plot. The nuclei are followed from frame to frame
+ *  (overlap and centroid distance, see Utils/RegionTracker) and the band of every
+ *  cell in every frame is saved in a table (cell,frame,x,y,area,mean) if one is given.
  *  
  */
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
-import ij.gui.Roi;
-import ij.plugin.frame.RoiManager;
-import ij.measure.Measurements;
+import ij.ImageStack;
 import ij.gui.Plot;
 import ij.gui.PlotWindow;
+import ij.process.AutoThresholder;
+
+import ch.epfl.bii.ij2command.Utils.BandMeasurement;
+import ch.epfl.bii.ij2command.Utils.BinaryMorphology;
+import ch.epfl.bii.ij2command.Utils.ConnectedComponents;
+import ch.epfl.bii.ij2command.Utils.DogFilter;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+import ch.epfl.bii.ij2command.Utils.RegionTracker;
+import ch.epfl.bii.ij2command.Utils.StackPixels;
 
 @Plugin(type = Command.class, menuPath = "Plugins>BII 2023>MultipleChannelsQuantification")
 public class MultipleChannelsQuantification implements Command {
@@ -35,6 +50,9 @@ public class MultipleChannelsQuantification implements Command {
 	@Parameter
 	private ImagePlus image2; // cytoplasm
 	
+	@Parameter(label = "Cell time series (CSV)", style = "save", required = false)
+	private File table; // one row per cell per frame, not saved if null
+	
 	@Override
 	public void run() {
 		// duplicate the input
@@ -85,74 +103,118 @@ public class MultipleChannelsQuantification implements Command {
 	}
 	
 	public ImagePlus findnuclearmask(ImagePlus imp) {
-		ImagePlus Gaussian_blur_1 = imp.duplicate();
-		ImagePlus Gaussian_blur_2 = imp.duplicate();
 		// Perform DoG filtering
 		double sigma1 = 7;
 		//double sigma2 = Math.sqrt(2)*sigma1;
 		double sigma2 = 12;
-		IJ.run(Gaussian_blur_1, "Gaussian Blur...", "sigma=" + sigma1 + " stack");
-		IJ.run(Gaussian_blur_2, "Gaussian Blur...", "sigma=" + sigma2 + " stack");
-		ImagePlus DoG = ImageCalculator.run(Gaussian_blur_1, Gaussian_blur_2, "Subtract create 32-bit stack");
+		// both scales in one pass over each frame, the difference is kept in 32-bit
+		int parallelism = FrameParallel.getDefaultParallelism();
+		DogFilter filter = new DogFilter(sigma1, sigma2, false);
+		ImagePlus DoG = filter.filter(imp, parallelism);
 		//DoG.show(); // 32-bit
 	
-		// Make Binary (8-bit) + binary operations
-		IJ.run(DoG, "Make Binary", "method=Huang background=Dark calculate black");
-		IJ.run(DoG, "Options...", "iterations=1 count=1 black do=Close stack");
-		IJ.run(DoG, "Options...", "iterations=1 count=1 black do=[Fill Holes] stack");
-		
-		// To make nucleus outline a bit bigger, not overlapping with the nucleus
-		IJ.run(DoG, "Options...", "iterations=1 count=1 black do=Dilate stack");
-		
-		// Return outline of the nucleus
-		IJ.run(DoG, "Options...", "iterations=2 count=1 black do=Outline stack");
-		return DoG;
+		// Make Binary (Huang, dark background) + binary operations, fused per frame without IJ.run:
+		// - Close, Fill Holes
+		// - Dilate, to make nucleus outline a bit bigger, not overlapping with the nucleus
+		// - Outline of the nucleus
+		// same result as the "Make Binary" and "Options..." (iterations=1 count=1 black) commands
+		BinaryMorphology morphology = new BinaryMorphology(AutoThresholder.Method.Huang);
+		return morphology.outlines(DoG, parallelism);
 	}
 	
 	public void cytomeasure(ImagePlus cimp, ImagePlus nmask) {
 		
-		// Create roi manager and measurement table option
-		RoiManager rm = new RoiManager();
-		int options = Measurements.MEAN;
-		
 		// Create a new scatter plot
 		Plot scatterPlot = new Plot("Results", "Time (frame)", "Intensity (A.U.)");
 		
 		int sizethres = 50;
-		// Analyze particle, put outline mask as ROI to ROI manager
-		// Set a threshold for size to get rid of small noisy outlines
-		IJ.run(nmask, "Analyze Particles...", "size=" + sizethres + "-Infinity add stack");
-		rm.runCommand(nmask,"Show None");
-		// Go through and update ROIs from outline to band
-		// During the update, calculate the mean intensity of fluorescence and plot it
-		int nR = rm.getCount();
-		// time frame for x-axis matching
-		// double t = 1;
-		double[] tlist = new double[nR];
-		double[] meanlist = new double[nR];
+		int band = 5;
+		// largest move of a nucleus between two frames when it does not overlap itself
+		double maxDistance = 10;
+		int parallelism = FrameParallel.getDefaultParallelism();
+		ImageStack masks = nmask.getStack();
+		int width = masks.getWidth();
+		int height = masks.getHeight();
+		int nt = masks.getSize();
+		StackPixels pixels = new StackPixels(cimp);
+		RegionTracker tracker = new RegionTracker(width, height, maxDistance);
 		
-		// Get ROI list
-		Roi[] roiArray = rm.getRoisAsArray(); //将由make particles生成的、在roi manager内的rois存成一个array
-		// Loop through all ROI
-		// 对于每个在array内的单个roi, 进行以下操作
-		for (Roi roi : roiArray) {
-			// select ROI, get the frame number and rm index of this ROI
-			// cimp是ImagePlus图档
-			cimp.setRoi(roi); // 把它投放到cimp图上，会看到某个frame的某个位置圈出了黄色的outline
-			int frame = roi.getPosition() - 1; // 记录这个roi所在的time frame，以便等一下画图
-			int roiIndex = rm.getRoiIndex(roi); // 记录这个roi在roi manager里面所处的顺序，以便等一下画图
-			// update ROI from outline to circular band
-			IJ.run(cimp, "Make Band...", "band=5"); // 将这个选好的outline转换成5pixel的band
-			Roi modifiedRoi = cimp.getRoi(); // 选取band
-			rm.setRoi(modifiedRoi, roiIndex); // 用band取代outline
-			// add the measurement to tlist and meanlist for later plotting
-			tlist[roiIndex] = frame; // 把frame(时间, 也就是scatterplot的x-axis)存到tlist里面
-			meanlist[roiIndex] = cimp.getStatistics(options).mean; // 测量band位置的mean, 存到meanlist里面
+		// time frame for x-axis matching, one point per outline (in the order of Analyze Particles)
+		double[] tlist = new double[1024];
+		double[] meanlist = new double[1024];
+		int roiIndex = 0;
+		// one pass over the movie, a block of frames at a time: only the labels of the block are in memory,
+		// the rows of the table are written as soon as the cells of a frame are linked
+		try (BufferedWriter writer = (table != null) ? Files.newBufferedWriter(table.toPath()) : null) {
+			if (writer != null) {
+				writer.write("cell,frame,x,y,area,mean");
+				writer.newLine();
+			}
+			for (int t0 = 0; t0 < nt; t0 += parallelism) {
+				final int start = t0;
+				ImageStack block = new ImageStack(width, height);
+				for (int t = t0; t < Math.min(nt, t0 + parallelism); t++) {
+					block.addSlice(masks.getProcessor(t + 1));
+				}
+				// Label the outlines of every frame (8-connected, as Analyze Particles)
+				// Set a threshold for size to get rid of small noisy outlines
+				ConnectedComponents cc = ConnectedComponents.label(block, 8, parallelism);
+				// Band of 5 pixels around every outline ("Make Band..." of its traced ROI) and its mean
+				// intensity in the cytoplasm channel, measured on the label image without any ROI,
+				// the filled outlines (the nuclei) are written in regions for the tracking
+				// 每个outline外面5pixel的band, 直接在label图上计算, 不用RoiManager
+				int[] regions = new int[width * height * block.getSize()];
+				BandMeasurement bands = BandMeasurement.measure(cc, (z, x, y) -> pixels.getValue(start + z, x, y), band, sizethres, regions, parallelism);
+				
+				// link the nuclei of every frame of the block to the previous frame, in time order
+				int first = 1;
+				for (int z = 0; z < block.getSize(); z++) {
+					int last = first;
+					while (last <= cc.getCount() && bands.getFrame(last) == z) {
+						last++;
+					}
+					int count = last - first;
+					double[] cx = new double[count];
+					double[] cy = new double[count];
+					long[] area = new long[count];
+					for (int k = 0; k < count; k++) {
+						double[] c = bands.getRegionCentroid(first + k);
+						cx[k] = c[0];
+						cy[k] = c[1];
+						area[k] = bands.getRegionArea(first + k);
+					}
+					int[] ids = tracker.link(regions, z * width * height, first, count, cx, cy, area);
+					for (int k = 0; k < count; k++) {
+						int l = first + k;
+						if (bands.getCount(l) < 0) {
+							continue;
+						}
+						if (writer != null) {
+							writer.write(ids[k] + "," + (t0 + z) + "," + (cx[k] + 0.5) + "," + (cy[k] + 0.5) + "," + area[k] + "," + bands.getMean(l));
+							writer.newLine();
+						}
+						// add the measurement to tlist and meanlist for later plotting
+						if (roiIndex == tlist.length) {
+							tlist = Arrays.copyOf(tlist, 2 * roiIndex);
+							meanlist = Arrays.copyOf(meanlist, 2 * roiIndex);
+						}
+						tlist[roiIndex] = t0 + z; // 把frame(时间, 也就是scatterplot的x-axis)存到tlist里面
+						meanlist[roiIndex] = bands.getMean(l); // band位置的mean, 存到meanlist里面
+						roiIndex++;
+					}
+					first = last;
+				}
+			}
+		}
+		catch (IOException e) {
+			IJ.error("Cannot write " + table + ": " + e.getMessage());
+			return;
 		}
-		// 全部roi都改成band，并且测量、储存完数据之后再一并画scatterplot
+		IJ.log(tracker.getCellCount() + " cells followed in " + nt + " frames" + ((table != null) ? ", saved in " + table : ""));
+		// 全部band测量、储存完数据之后再一并画scatterplot
 		// composite image was created manually after the analysis
 		// add data points in tlist and meanlist to scatterplot
-		scatterPlot.addPoints(tlist, meanlist, PlotWindow.CIRCLE);
+		scatterPlot.addPoints(Arrays.copyOf(tlist, roiIndex), Arrays.copyOf(meanlist, roiIndex), PlotWindow.CIRCLE);
 		scatterPlot.show();
 	}
 	
@@ -36,10 +36,19 @@ import org.scijava.plugin.Plugin;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Overlay;
-import ij.plugin.ImageCalculator;
 import ij.process.ImageProcessor;
 
+import ch.epfl.bii.ij2command.Utils.DogFilter;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+import ch.epfl.bii.ij2command.Utils.LinkCost;
+import ch.epfl.bii.ij2command.Utils.MaxFilter;
+import ch.epfl.bii.ij2command.Utils.PixelSource;
+import ch.epfl.bii.ij2command.Utils.SparseAssignment;
+import ch.epfl.bii.ij2command.Utils.SpotGrid;
+import ch.epfl.bii.ij2command.Utils.StackPixels;
+
 // Workflow
 // 1. Load the image
 // 2. Apply the DoG filter
@@ -50,7 +59,8 @@ import ij.process.ImageProcessor;
 //  5.2. Loop over the spots in current frame and next frame
 //  5.3. Use a GOOD COST FUNCTION to determine if the two spots are linked
 //     - method 1: thresholding. Link the first spot that have a distance < threshold
-//     - method 2: cost function c(xt, xt+1). Sweep over all spot candidates and link the one with the least cost
+//     - method 2: cost function c(xt, xt+1). Sweep over the spot candidates closer than distance_max and
+//       solve one assignment per frame so that the summed cost of the links is minimal (one-to-one links)
 // 6. Display the result
 
 @Plugin(type = Command.class, menuPath = "Plugins>BII 2023>ParticleTracking")
@@ -60,6 +70,13 @@ public class ParticleTracking implements Command {
 	@Parameter
 	private double lambda; // lambda ~ 0 is the best !!!
 	
+	// number of frames detected at the same time
+	private int parallelism = FrameParallel.getDefaultParallelism();
+	
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+	
 	public void run() {
 		// for model selection
 		boolean method1 = false;
@@ -82,8 +99,9 @@ public class ParticleTracking implements Command {
 		// for method 2
 		double fmax = findMax(imp, nt);
 		double dmax = Math.sqrt(xmax*xmax + ymax*ymax);
-		double intdiff = 0;
-		double temp_cost = 1;
+		LinkCost cost = getDISINT(dmax, fmax, lambda);
+		// cost of ending or starting a track, the costs are normalized to [0, 1]
+		double alt_cost = 0.5 * 1.05;
 		
 		// start the workflow
 		ImagePlus dog = dog(imp, sigma);
@@ -92,58 +110,78 @@ public class ParticleTracking implements Command {
 		ArrayList<Spot> localmax[] = localMax(dog);
 		// select the spots that are above the threshold after localMax
 		ArrayList<Spot> spots[] = filter(dog, localmax, threshold);
+		// features of the cost (position, intensity), measured once per spot
+		int[] offsets = new int[nt + 1];
+		for (int t = 0; t < nt; t++) {
+			offsets[t+1] = offsets[t] + spots[t].size();
+		}
+		LinkCost.Columns features = measureFeatures(new StackPixels(imp), spots, offsets);
 		// connect the spots in positive time order
 		// PART THAT YOU HAVE TO IMPLEMENT AND MODIFY
 		for (int t = 0; t < nt - 1; t++) {
 			System.out.println("Frame " + (t+1));
+			// for method 2, index the next frame and collect the gated pairs
+			SpotGrid grid = buildGrid(spots[t+1], (int)Math.ceil(distance_max));
+			int[] candidates = new int[spots[t+1].size()];
+			int[] ids = new int[spots[t+1].size()];
+			double[] costs = new double[spots[t+1].size()];
+			SparseAssignment lap = new SparseAssignment(spots[t].size(), spots[t+1].size());
 			int cur_ind = 0;
 			for (Spot current : spots[t]) { // for each spot in the current frame
-				// for method 2
-				double min_cost = 1;
-				int min_ind = 0;
-				int ind = 0;
-				for (Spot next : spots[t+1]) { // for each spot in the next frame
-					// COST FUNCTION
-					// 1. THRESHOLDING
-					// if the distance between the two spots is less than distance_max, link them
-					// i.e., if dist. > 3 pixels, there is a breakage in the track
-					if (method1 == true) {
+				if (method1 == true) {
+					int ind = 0;
+					for (Spot next : spots[t+1]) { // for each spot in the next frame
+						// COST FUNCTION
+						// 1. THRESHOLDING
+						// if the distance between the two spots is less than distance_max, link them
+						// i.e., if dist. > 3 pixels, there is a breakage in the track
 						if (current.distance(next) < distance_max) {
 							current.link(next);
-							min_ind = ind;
-							// System.out.println("Frame " + (t+1) + " add link between cur " + cur_ind + "(" + current.x + ", " + current.y + ") and next " + min_ind + "(" + next.x + ", " + next.y + ")");
+							// System.out.println("Frame " + (t+1) + " add link between cur " + cur_ind + "(" + current.x + ", " + current.y + ") and next " + ind + "(" + next.x + ", " + next.y + ")");
 							break;
 						}
 						ind++;
 					}
-					// 2. DISTANCE and INTENSITY
-					// calculate the cost for every spot next in frame t+1
-					// link the spot with the lowest cost
-					if (method2 == true) {
-						intdiff = findIntdiff(imp, t, current, next);
-						// compute the cost
-						temp_cost = getDISINT(current, next, dmax, fmax, lambda, intdiff);
-						if (temp_cost <= min_cost) {
-							min_cost = temp_cost; 
-							min_ind = ind;
+				}
+				// 2. DISTANCE and INTENSITY
+				// calculate the cost for every spot next in frame t+1 closer than distance_max (gating)
+				// the links are then chosen all together so that no spot is claimed twice
+				if (method2 == true) {
+					int ncand = grid.queryRadius(current.x, current.y, distance_max, candidates);
+					int m = 0;
+					for (int k = 0; k < ncand; k++) {
+						Spot next = spots[t+1].get(candidates[k]);
+						if (current.distance(next) > distance_max) {
+							continue;
 						}
-						ind++;
+						candidates[m] = candidates[k];
+						ids[m] = offsets[t+1] + candidates[k];
+						m++;
 						// identify possible offspring
 						if (current.distance(next) < distance_max) {
 							current.offspring(next);
 						}
 					}
-				}
-				// link the spot with the minimum cost
-				//System.out.println("time point: " + (t+1) + " find min cost " + min_cost + " for cur " + cur_ind + " and min_ind " + min_ind);
-				// for method 2
-				if (method2 == true) {
-					Spot good_next = spots[t+1].get(min_ind);
-					//System.out.println("Frame " + (t+1) + " add link between cur " + cur_ind + "(" + current.x + ", " + current.y + ") and next " + min_ind + "(" + good_next.x + ", " + good_next.y + ")");
-					current.link(good_next);
+					// compute the costs of all the candidates
+					cost.evaluate(features, offsets[t] + cur_ind, ids, m, costs);
+					for (int k = 0; k < m; k++) {
+						lap.add(cur_ind, candidates[k], costs[k]);
+					}
 				}
 				cur_ind++;
 			}
+			// link every spot with its assigned candidate (global minimum of the summed costs)
+			// for method 2
+			if (method2 == true) {
+				int[] assignment = lap.solve(alt_cost, alt_cost);
+				for (int i = 0; i < assignment.length; i++) {
+					if (assignment[i] >= 0) {
+						Spot good_next = spots[t+1].get(assignment[i]);
+						//System.out.println("Frame " + (t+1) + " add link between cur " + i + " and next " + assignment[i]);
+						spots[t].get(i).link(good_next);
+					}
+				}
+			}
 		}
 		// bring back to the first frame
 		Overlay overlay = new Overlay();
@@ -167,58 +205,60 @@ public class ParticleTracking implements Command {
 
 	// the dog filter with sigma and sigma*sqrt(2)
 	private ImagePlus dog(ImagePlus imp, double sigma) {
-		ImagePlus g1 = imp.duplicate();
-		ImagePlus g2 = imp.duplicate();
-		IJ.run(g1, "Gaussian Blur...", "sigma=" + sigma + " stack");
-		IJ.run(g2, "Gaussian Blur...", "sigma=" + (Math.sqrt(2) * sigma) + " stack");
-		ImagePlus dog = ImageCalculator.run(g1, g2, "Subtract create stack");
+		// both scales in one pass over each frame, the result is a single 32-bit stack
+		DogFilter filter = new DogFilter(sigma, Math.sqrt(2) * sigma, true);
+		ImagePlus dog = filter.filter(imp, parallelism);
 		dog.show();
 		return dog;
 	}
 
+	// the frames are read from the stack (the position of dog is not changed) and filtered in parallel
 	private ArrayList<Spot>[] filter(ImagePlus dog, ArrayList<Spot> spots[], double threshold) {
 		int nt = spots.length;
+		ImageStack stack = dog.getStack();
 		ArrayList<Spot> out[] = new Spots[nt];
-		for (int t = 0; t < nt; t++) {
+		FrameParallel.run(nt, parallelism, t -> {
 			out[t] = new Spots();
+			ImageProcessor ip = stack.getProcessor(dog.getStackIndex(1, 1, t + 1));
 			for (Spot spot : spots[t]) {
-				dog.setPosition(1, 1, t + 1);
-				double value = dog.getProcessor().getPixelValue(spot.x, spot.y);
+				double value = ip.getPixelValue(spot.x, spot.y);
 				if (value > threshold)
 					out[t].add(spot);
 			}
-		}
+		});
 		return out;
 	}
 
+	// local maxima in the 3x3 neighborhood, computed on the pixel array of the frame (see MaxFilter)
+	// the frames are read from the stack (the position of imp is not changed) and detected in parallel
 	public Spots[] localMax(ImagePlus imp) {
 		int nt = imp.getNFrames();
 		int nx = imp.getWidth();
-		int ny = imp.getHeight();
+		ImageStack stack = imp.getStack();
 		Spots spots[] = new Spots[nt];
-		for (int t = 0; t < nt; t++) {
-			imp.setPosition(1, 1, t + 1);
-			ImageProcessor ip = imp.getProcessor();
+		FrameParallel.run(nt, parallelism, t -> {
+			ImageProcessor ip = stack.getProcessor(imp.getStackIndex(1, 1, t + 1));
 			spots[t] = new Spots();
-			// loop over the pixels
-			for (int x = 1; x < nx - 1; x++) {
-				for (int y = 1; y < ny - 1; y++) {
-					double v = ip.getPixelValue(x, y);
-					double max = -1;
-					// loop over the 3x3 neighborhood
-					for (int k = -1; k <= 1; k++)
-						for (int l = -1; l <= 1; l++)
-							max = Math.max(max, ip.getPixelValue(x + k, y + l));
-					// if the pixel is the maximum of the neighborhood, add it to the list
-							if (v == max)
-						spots[t].add(new Spot(x, y, t));
-				}
+			for (int index : MaxFilter.localMaxima(ip, 1, false)) {
+				spots[t].add(new Spot(index % nx, index / nx, t));
 			}
-		}
+		});
 		// return a list of spots
 		return spots;
 	}
 
+	// index the spots of one frame for the radius queries of the gating
+	private SpotGrid buildGrid(ArrayList<Spot> spots, int cellSize) {
+		int n = spots.size();
+		int[] xs = new int[n];
+		int[] ys = new int[n];
+		for (int i = 0; i < n; i++) {
+			xs[i] = spots.get(i).x;
+			ys[i] = spots.get(i).y;
+		}
+		return new SpotGrid(xs, ys, n, cellSize);
+	}
+
 	// compute the max of the image
 	public double findMax(ImagePlus imp, int nt) {
 		double fmax = 0;
@@ -235,25 +275,28 @@ public class ParticleTracking implements Command {
 	// find whether there is an ancestor in the neighborhood
 	// if 
 
-	// get the coordinates of the image
-	public double findIntdiff(ImagePlus imp, int t, Spot current, Spot next) {
-		imp.setSlice(t+1);
-		ImageProcessor pimp1 = imp.getProcessor();
-		double v1 = pimp1.getPixelValue(current.x, current.y);
-		imp.setSlice(t+2);
-		ImageProcessor pimp2 = imp.getProcessor();
-		double v2 = pimp2.getPixelValue(next.x, next.y);
-		double intdiff = Math.abs(v1-v2);
-		return intdiff;
+	// features of every spot, the id of spot k of frame t is offsets[t] + k
+	// the intensity is read from the pre-fetched arrays of imp (slice t+1)
+	private LinkCost.Columns measureFeatures(PixelSource pixels, ArrayList<Spot> spots[], int[] offsets) {
+		int nt = spots.length;
+		LinkCost.Columns features = new LinkCost.Columns(offsets[nt]);
+		FrameParallel.run(nt, parallelism, t -> {
+			int id = offsets[t];
+			for (Spot spot : spots[t]) {
+				features.set(LinkCost.X, id, spot.x);
+				features.set(LinkCost.Y, id, spot.y);
+				features.set(LinkCost.INTENSITY, id, pixels.getValue(t, spot.x, spot.y));
+				id++;
+			}
+		});
+		return features;
 	}
 
-	// compute the DISINT cost function
-	public double getDISINT(Spot current, Spot next, double dmax, double fmax, double lambda, double intdiff) {
-		double cost = 0;
-		double dist = current.distance(next);
-		// do something
-		cost = (1-lambda)*(dist/dmax)+lambda*(intdiff)/fmax;
-		return cost;
+	// the DISINT cost function: (1-lambda)*dist/dmax + lambda*intdiff/fmax
+	public LinkCost getDISINT(double dmax, double fmax, double lambda) {
+		return new LinkCost()
+				.add(1 - lambda, LinkCost.distance(dmax))
+				.add(lambda, LinkCost.difference(LinkCost.INTENSITY, fmax));
 	}
 
 }
@@ -12,18 +12,15 @@ public class Spot {
 	// to build a graph if needed
 	// "next" become a "spot object" in this class
 	private Spot next = null;
-	private Color color;
+	// the spot giving its color to this one, the color itself is only computed when drawn
+	private Spot root = this;
 
-	// assign a random color to the spot
 	public Spot(int x, int y, int t) {
 		// "this" refer to the current object. 
 		// For user to have access to object attributes 
 		this.x = x;
 		this.y = y;
 		this.t = t;
-		// generate a random color
-		color = Color.getHSBColor((float)Math.random(), 1f, 1f);
-		color = new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
 	}
 
 	// compute the distance between two spots
@@ -49,7 +46,7 @@ public class Spot {
 		// draw trajectory
 		if (next != null) {
 			Line line = new Line(x, y, next.x, next.y);
-			line.setStrokeColor(color);
+			line.setStrokeColor(color());
 			line.setStrokeWidth(2);
 			overlay.add(line);
 		}
@@ -65,7 +62,7 @@ public class Spot {
 		if (a == null)
 			return;
 		a.next = this; // take the spot "current" as the next spot of "a" a->current
-		a.color = this.color;
+		a.root = this.root;
 	}
 	
 	// color the spots with the same color (without linking it) 
@@ -74,7 +71,14 @@ public class Spot {
 		// if a is null, do nothing and return
 		if (a == null)
 			return;
-		a.color = this.color;
+		a.root = this.root;
+	}
+	
+	// a random-looking color per root spot, with transparency
+	private Color color() {
+		float hue = (float)((System.identityHashCode(root) * 0.6180339887498949) % 1.0);
+		Color color = Color.getHSBColor(hue, 1f, 1f);
+		return new Color(color.getRed(), color.getGreen(), color.getBlue(), 120);
 	}
 	
 	public String toString() {
@@ -12,20 +12,25 @@ import org.scijava.ui.UIService;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.process.FloodFiller;
-import ij.process.ImageProcessor;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
+import ch.epfl.bii.ij2command.Utils.ConnectedComponents;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+
 /**
  *  This example illustrates how to create an ImageJ 2 {@link Command} plugin.
  * The pom file of this project is customized for the course BioImageInformatics BIO-410 @EPFL
  * https://edu.epfl.ch/coursebook/fr/bioimage-informatics-BIO-410
  * 
  * <p>
- * The code here is performing a simple recursive flood filling algorithm (4-connections). 
+ * The code here is labeling the connected regions of an image (4- or 8-connections) or of a
+ * stack (6- or 26-connections) with the tile-parallel union-find of {@link ConnectedComponents}. 
  * The command can be tested in the java DummyCommandTest class.
  * 
  * </p>
@@ -35,49 +40,32 @@ import java.net.URL;
 @Plugin(type = Command.class, menuPath = "Plugins>BII 2023>FloodFiller")
 public class SimpleFloodFilling implements Command {
 
-    ImageProcessor outIP;
+    // label stack, 16-bit up to 65535 labels and 32-bit above
+    ImageStack outStack;
     
     public void run() {
     	ImagePlus imp=WindowManager.getCurrentImage();
     	if (imp==null) {IJ.showMessage("Input image needed");return;}
-    	ImageProcessor inputIP=imp.getProcessor();
-    	outIP=inputIP.duplicate();
-    	int width=outIP.getWidth();
-    	int height=outIP.getHeight();
-    	int count=1;
-    	for (int nx=0;nx<width;nx++) {
-    		for (int ny=0;ny<height;ny++) {
-    			if (outIP.getPixel(nx, ny)==255) {
-    				checkConnection(nx,ny,count,inputIP);
-    				count++;
-    			}
-    		}
+    	GenericDialog gd=new GenericDialog("Flood filling");
+    	// 6 and 26 connect the slices of a stack
+    	String[] choices=(imp.getStackSize()>1) ? new String[] {"4", "8", "6", "26"} : new String[] {"4", "8"};
+    	gd.addChoice("Connectivity", choices, "4");
+    	gd.showDialog();
+    	if (gd.wasCanceled()) {
+    		return;
     	}
+    	int connectivity=Integer.parseInt(gd.getNextChoice());
+    	// the pixels equal to 255 are filled
+    	ConnectedComponents cc=ConnectedComponents.label(imp.getStack(), connectivity, FrameParallel.getDefaultParallelism());
+    	outStack=cc.toStack();
+    	IJ.log(cc.getCount()+" regions");
     	
-    	ImagePlus out=new ImagePlus("Test",outIP);
+    	ImagePlus out=new ImagePlus("Test",outStack);
+    	out.setCalibration(imp.getCalibration());
     	out.show();
     	
     	
 
-    }
-    
-    ImageProcessor checkConnection(int x,int y,int value, ImageProcessor ip) {
-    	
-    	int valueSeed=(int) outIP.getValue(x, y);
-    	outIP.putPixel(x,y,value);
-    	if (outIP.getValue(x+1,y)==valueSeed) {
-    		checkConnection(x+1,y,value,ip);
-    	}
-    	if (outIP.getValue(x-1,y)==valueSeed) {
-    		checkConnection(x-1,y,value,ip);
-    	}
-    	if (outIP.getValue(x,y+1)==valueSeed) {
-    		checkConnection(x,y+1,value,ip);
-    	}
-    	if (outIP.getValue(x,y-1)==valueSeed) {
-    		checkConnection(x,y-1,value,ip);
-    	}
-    	return ip;
     }
 
     /**
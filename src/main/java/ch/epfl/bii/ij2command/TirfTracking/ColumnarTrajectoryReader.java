@@ -0,0 +1,205 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Memory-mapped reader of the files of ColumnarTrajectoryWriter (layout described there).
+ *
+ *  Only the footer (chunk positions and index by track) is read when the file is
+ *  opened. The chunks are mapped the first time one of their rows is read, so a
+ *  track is read without going through the rows before it, and the file can be
+ *  larger than 2 GB. The rows are read with absolute gets: several threads can
+ *  read the same file.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ColumnarTrajectoryReader implements Closeable {
+	private final FileChannel channel;
+	private final int chunkRows;
+	private final long rows;
+	private final long[] offsets;
+	private final AtomicReferenceArray<ByteBuffer> chunks;
+	private final int[] ids;
+	private final long[] firstRows;
+	private final int[] counts;
+	private final double[] speeds;
+	private final double[] diffusions;
+
+	public ColumnarTrajectoryReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			byte[] magic = ColumnarTrajectoryWriter.MAGIC;
+			if (size < 2 * magic.length + 8) {
+				throw new IOException(path + " is not a trajectory file");
+			}
+			ByteBuffer trailer = read(size - 8 - magic.length, 8 + magic.length);
+			long position = trailer.getLong();
+			byte[] end = new byte[magic.length];
+			trailer.get(end);
+			if (Arrays.equals(end, magic) == false || position < magic.length || position > size - trailer.capacity()) {
+				throw new IOException(path + " is not a trajectory file");
+			}
+			ByteBuffer footer = read(position, (int)(size - trailer.capacity() - position));
+			chunkRows = footer.getInt();
+			int nchunks = footer.getInt();
+			rows = footer.getLong();
+			int tracks = footer.getInt();
+			offsets = new long[nchunks];
+			for (int c = 0; c < nchunks; c++) {
+				offsets[c] = footer.getLong();
+			}
+			ids = new int[tracks];
+			firstRows = new long[tracks];
+			counts = new int[tracks];
+			speeds = new double[tracks];
+			diffusions = new double[tracks];
+			for (int k = 0; k < tracks; k++) {
+				ids[k] = footer.getInt();
+			}
+			for (int k = 0; k < tracks; k++) {
+				firstRows[k] = footer.getLong();
+			}
+			for (int k = 0; k < tracks; k++) {
+				counts[k] = footer.getInt();
+			}
+			for (int k = 0; k < tracks; k++) {
+				speeds[k] = footer.getDouble();
+			}
+			for (int k = 0; k < tracks; k++) {
+				diffusions[k] = footer.getDouble();
+			}
+			chunks = new AtomicReferenceArray<>(nchunks);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		bb.flip();
+		return bb;
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	public int getTrackCount() {
+		return ids.length;
+	}
+
+	// id of the k-th track of the file
+	public int getTrackId(int k) {
+		return ids[k];
+	}
+
+	// position of the track in the index, -1 if the file has no such track
+	public int indexOf(int id) {
+		int k = Arrays.binarySearch(ids, id);
+		return (k < 0) ? -1 : k;
+	}
+
+	public double getSpeed(int id) {
+		return speeds[find(id)];
+	}
+
+	public double getDiffusion(int id) {
+		return diffusions[find(id)];
+	}
+
+	// number of rows (points) of the track
+	public int getLength(int id) {
+		return counts[find(id)];
+	}
+
+	// points {x, y, t} of the track, as given by TirfTracking.analyzeTrajectories()
+	public ArrayList<int[]> getTrack(int id) {
+		int k = find(id);
+		ArrayList<int[]> points = new ArrayList<>(counts[k]);
+		for (long row = firstRows[k], last = firstRows[k] + counts[k]; row < last; row++) {
+			ByteBuffer chunk = chunk(row);
+			int n = chunk.capacity() / ColumnarTrajectoryWriter.ROW_BYTES;
+			int i = (int)(row % chunkRows);
+			points.add(new int[] {chunk.getInt(4 * (n + i)), chunk.getInt(4 * (2 * n + i)), chunk.getInt(4 * (3 * n + i))});
+		}
+		return points;
+	}
+
+	// columns of one row of the file
+	public int getTrackOfRow(long row) {
+		return getInt(row, 0);
+	}
+
+	public int getX(long row) {
+		return getInt(row, 1);
+	}
+
+	public int getY(long row) {
+		return getInt(row, 2);
+	}
+
+	public int getT(long row) {
+		return getInt(row, 3);
+	}
+
+	private int getInt(long row, int column) {
+		ByteBuffer chunk = chunk(row);
+		int n = chunk.capacity() / ColumnarTrajectoryWriter.ROW_BYTES;
+		return chunk.getInt(4 * (column * n + (int)(row % chunkRows)));
+	}
+
+	private int find(int id) {
+		int k = indexOf(id);
+		if (k < 0) {
+			throw new IllegalArgumentException("No track " + id);
+		}
+		return k;
+	}
+
+	// chunk of the row, mapped when first read
+	private ByteBuffer chunk(long row) {
+		if (row < 0 || row >= rows) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+		}
+		int c = (int)(row / chunkRows);
+		ByteBuffer chunk = chunks.get(c);
+		return (chunk != null) ? chunk : map(c);
+	}
+
+	private synchronized ByteBuffer map(int c) {
+		if (chunks.get(c) == null) {
+			long n = Math.min(chunkRows, rows - (long)c * chunkRows);
+			try {
+				chunks.set(c, channel.map(FileChannel.MapMode.READ_ONLY, offsets[c], n * ColumnarTrajectoryWriter.ROW_BYTES).order(ByteOrder.LITTLE_ENDIAN));
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException("Cannot map chunk " + c, e);
+			}
+		}
+		return chunks.get(c);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,178 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Binary columnar export of the trajectories, the same rows as the CSV
+ *  (track,x,y,t,speed,diffusion) without any text formatting.
+ *
+ *  Layout of the file (little-endian, read back by ColumnarTrajectoryReader):
+ *    magic      8 bytes  "BIITRJ01"
+ *    chunks     rows in chunks of CHUNK_ROWS rows (the last one can be shorter),
+ *               every chunk is column after column:
+ *               int32 track[n], int32 x[n], int32 y[n], int32 t[n],
+ *               float64 speed[n], float64 diffusion[n]
+ *               (32 bytes per row, every column is aligned on its type, so a
+ *               chunk can be read with numpy.frombuffer / numpy.memmap)
+ *    footer     int32 chunkRows, int32 chunks, int64 rows, int32 tracks,
+ *               int64 offset[chunks] (position of every chunk in the file),
+ *               index by track: int32 id[tracks], int64 firstRow[tracks],
+ *               int32 count[tracks], float64 speed[tracks], float64 diffusion[tracks]
+ *    trailer    int64 position of the footer, magic 8 bytes
+ *
+ *  The rows of a track are contiguous and the track ids increase, as in
+ *  analyzeTrajectories(), so a track is found by a binary search in the index.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class ColumnarTrajectoryWriter implements Closeable {
+	public static final byte[] MAGIC = "BIITRJ01".getBytes(StandardCharsets.US_ASCII);
+	public static final int CHUNK_ROWS = 1 << 16;
+	public static final int ROW_BYTES = 4 * 4 + 2 * 8;
+
+	private final FileChannel channel;
+	// columns of the chunk being filled
+	private final int[] track = new int[CHUNK_ROWS];
+	private final int[] x = new int[CHUNK_ROWS];
+	private final int[] y = new int[CHUNK_ROWS];
+	private final int[] t = new int[CHUNK_ROWS];
+	private final double[] speed = new double[CHUNK_ROWS];
+	private final double[] diffusion = new double[CHUNK_ROWS];
+	private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_ROWS * ROW_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	private int n = 0;
+	private long rows = 0;
+	private long[] offsets = new long[16];
+	private int chunks = 0;
+	// index by track
+	private int[] ids = new int[1024];
+	private long[] firstRows = new long[1024];
+	private int[] counts = new int[1024];
+	private double[] speeds = new double[1024];
+	private double[] diffusions = new double[1024];
+	private int tracks = 0;
+
+	public ColumnarTrajectoryWriter(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(ByteBuffer.wrap(MAGIC));
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// rows of one track, the points are {x, y, t} (more values of a point are ignored), the tracks are written by increasing id
+	public void writeTrack(int id, ArrayList<int[]> points, double trackSpeed, double trackDiffusion) throws IOException {
+		if (tracks > 0 && id <= ids[tracks - 1]) {
+			throw new IllegalArgumentException("Track " + id + " written after track " + ids[tracks - 1]);
+		}
+		long first = rows;
+		for (int[] point : points) {
+			if (point.length < 3) {
+				continue;
+			}
+			track[n] = id;
+			x[n] = point[0];
+			y[n] = point[1];
+			t[n] = point[2];
+			speed[n] = trackSpeed;
+			diffusion[n] = trackDiffusion;
+			n++;
+			rows++;
+			if (n == CHUNK_ROWS) {
+				flush();
+			}
+		}
+		if (tracks == ids.length) {
+			int capacity = 2 * tracks;
+			ids = Arrays.copyOf(ids, capacity);
+			firstRows = Arrays.copyOf(firstRows, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			speeds = Arrays.copyOf(speeds, capacity);
+			diffusions = Arrays.copyOf(diffusions, capacity);
+		}
+		ids[tracks] = id;
+		firstRows[tracks] = first;
+		counts[tracks] = (int)(rows - first);
+		speeds[tracks] = trackSpeed;
+		diffusions[tracks] = trackDiffusion;
+		tracks++;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	// write the chunk being filled
+	private void flush() throws IOException {
+		if (n == 0) {
+			return;
+		}
+		if (chunks == offsets.length) {
+			offsets = Arrays.copyOf(offsets, 2 * chunks);
+		}
+		offsets[chunks++] = channel.position();
+		chunk.clear();
+		chunk.asIntBuffer().put(track, 0, n).put(x, 0, n).put(y, 0, n).put(t, 0, n);
+		chunk.position(16 * n);
+		chunk.asDoubleBuffer().put(speed, 0, n).put(diffusion, 0, n);
+		chunk.position(0).limit(ROW_BYTES * n);
+		writeFully(chunk);
+		n = 0;
+	}
+
+	private void writeFooter() throws IOException {
+		long position = channel.position();
+		ByteBuffer footer = ByteBuffer.allocate(20 + 8 * chunks + 32 * tracks + 16).order(ByteOrder.LITTLE_ENDIAN);
+		footer.putInt(CHUNK_ROWS).putInt(chunks).putLong(rows).putInt(tracks);
+		for (int c = 0; c < chunks; c++) {
+			footer.putLong(offsets[c]);
+		}
+		for (int k = 0; k < tracks; k++) {
+			footer.putInt(ids[k]);
+		}
+		for (int k = 0; k < tracks; k++) {
+			footer.putLong(firstRows[k]);
+		}
+		for (int k = 0; k < tracks; k++) {
+			footer.putInt(counts[k]);
+		}
+		for (int k = 0; k < tracks; k++) {
+			footer.putDouble(speeds[k]);
+		}
+		for (int k = 0; k < tracks; k++) {
+			footer.putDouble(diffusions[k]);
+		}
+		footer.putLong(position).put(MAGIC);
+		footer.flip();
+		writeFully(footer);
+	}
+
+	private void writeFully(ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			writeFooter();
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
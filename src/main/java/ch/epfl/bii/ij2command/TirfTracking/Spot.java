@@ -5,37 +5,77 @@ import ij.gui.Line;
 import ij.gui.Arrow;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
-import java.io.Serializable;
-
-public class Spot implements Serializable {
-	public int x;
-	public int y;
-	public int t;
-	public boolean track;
-	// to build a graph if needed
-	// "next" become a "spot object" in this class
-	Spot next = null;
-	Spot prev = null;
-	int[] direction = {0, 0};
-	private Color color;
-
-	// assign a random color to the spot
-	public Spot(int x, int y, int t) {
-		// "this" refer to the current object. 
-		// For user to have access to object attributes 
-		this.x = x;
-		this.y = y;
-		this.t = t;
-		this.track = false;
-		// generate a random color
-		color = Color.getHSBColor((float)Math.random(), 1f, 1f);
-		color = new Color(color.getRed(), color.getGreen(), color.getBlue(), 255); // no transparency
-	}
-
-	// compute the distance between two spots
+
+// view on one row of a SpotTable, created on demand by SpotTable.get() and SpotTable.add()
+// the views are not kept: two views of the same spot are equal, not identical
+public class Spot {
+	public final int x;
+	public final int y;
+	public final int t;
+	// the links, the direction and the tracked flag are stored in the table
+	// "next" become a row of the table
+	final SpotTable table;
+	final int id;
+
+	Spot(SpotTable table, int id) {
+		// "this" refer to the current object.
+		// For user to have access to object attributes
+		this.table = table;
+		this.id = id;
+		this.x = table.getX(id);
+		this.y = table.getY(id);
+		this.t = table.getT(id);
+	}
+
+	public SpotTable getTable() {
+		return table;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Spot getNext() {
+		return table.get(table.getNext(id));
+	}
+
+	public Spot getPrev() {
+		return table.get(table.getPrev(id));
+	}
+
+	public boolean isTracked() {
+		return table.isTracked(id);
+	}
+
+	public void setTracked(boolean track) {
+		table.setTracked(id, track);
+	}
+
+	public float getIntensity() {
+		return table.getIntensity(id);
+	}
+
+	public void setIntensity(float value) {
+		table.setIntensity(id, value);
+	}
+
+	// sub-pixel position (the pixel if not refined)
+	public float getSubX() {
+		return table.getSubX(id);
+	}
+
+	public float getSubY() {
+		return table.getSubY(id);
+	}
+
+	public void setDirection(int dx, int dy) {
+		table.setDirection(id, dx, dy);
+	}
+
+	// compute the distance between two spots, at their sub-pixel positions
 	public double distance(Spot spot) {
-		double dx = x - spot.x;
-		double dy = y - spot.y;
+		double dx = getSubX() - spot.getSubX();
+		double dy = getSubY() - spot.getSubY();
 		return Math.sqrt(dx * dx + dy * dy);
 	}
 
@@ -52,18 +92,24 @@ public class Spot implements Serializable {
 		roi.setStrokeWidth(0.3);
 		overlay.add(roi);
 		// draw trajectory
+		drawLink(overlay);
+
+		//TextRoi text = new TextRoi(x, y-10, "" + value);
+		//text.setPosition(t+1);
+		//overlay.add(text);
+	}
+
+	// draw the link to the next spot (shown on every frame), the colour of the track is only computed here
+	public void drawLink(Overlay overlay) {
+		Spot next = getNext();
 		if (next != null) {
 			Line line = new Line(x, y, next.x, next.y);
-			line.setStrokeColor(color);
+			line.setStrokeColor(table.getColor(id));
 			line.setStrokeWidth(0.5);
 			overlay.add(line);
 		}
-		
-		//TextRoi text = new TextRoi(x, y-10, "" + value);
-		//text.setPosition(t+1);
-		//overlay.add(text);
 	}
-	
+
 	public void drawDirections(Overlay overlay, int radius) {
 		double xp = x + 0.5;
 		double yp = y + 0.5;
@@ -75,9 +121,11 @@ public class Spot implements Serializable {
 		roi.setStrokeColor(Color.white);
 		roi.setStrokeWidth(0.3);
 		overlay.add(roi);
-		
-		if(direction[0]!=0 && direction[1]!=0) {
-			Arrow arrow = new Arrow(x, y, x+direction[0], y+direction[1]);
+
+		int dx = table.getDx(id);
+		int dy = table.getDy(id);
+		if(dx!=0 && dy!=0) {
+			Arrow arrow = new Arrow(x, y, x+dx, y+dy);
 			arrow.setStrokeColor(Color.white);
 			arrow.setStrokeWidth(0.5);
 			arrow.setPosition(t+1);
@@ -85,18 +133,30 @@ public class Spot implements Serializable {
 			overlay.add(arrow);
 		}
 	}
-	
+
 	// usage: current.link(next);
+	// the two spots must belong to the same table
 	public void link(Spot a) {
 		// if a is null, do nothing and return
 		if (a == null)
 			return;
-		a.next = this; // take the spot "current" as the next spot of "a" a->current
-		this.prev = a;
-		a.color = this.color;
+		if (a.table != table) {
+			throw new IllegalArgumentException("Cannot link spots of two different tables");
+		}
+		table.link(id, a.id); // take the spot "current" as the next spot of "a" a->current
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof Spot) && ((Spot)o).table == table && ((Spot)o).id == id;
+	}
+
+	@Override
+	public int hashCode() {
+		return id;
 	}
 
 	public String toString() {
 		return "(" + x + ", " + y + ", " + t + ")";
 	}
-}
\ No newline at end of file
+}
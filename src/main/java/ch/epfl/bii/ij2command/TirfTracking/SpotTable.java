@@ -0,0 +1,279 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+import ch.epfl.bii.ij2command.Utils.LinkCost;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Column store of all the spots of a movie.
+ *
+ *  Every spot is a row index (its id) in primitive columns: position, frame,
+ *  intensity, the links of the track graph (ids, -1 if none), the direction vector
+ *  and the tracked flag. The sub-pixel position (the pixel until refined), the
+ *  amplitude and the width of the fitted Gaussian (NaN if not fitted) are kept
+ *  next to the pixel position, see TirfTracking.refineSpots(). The per-frame lists
+ *  (Spots) hold the ids, a Spot is a transient view on one row created by get(),
+ *  so no object is kept per spot.
+ *
+ *  The features of the link cost are columns as well (LinkCost.Features): the
+ *  sub-pixel position, the width of the fit, and the value of the frame (signal)
+ *  and of the orientation map at the spot, measured once before the linking.
+ *
+ *  No colour is stored: the colour of a track is computed when it is drawn, from
+ *  the id of its first spot.
+ *
+ *  Spots can be added by several threads (detection of the frames in parallel),
+ *  the other methods must not run at the same time as add().
+ */
+
+public class SpotTable implements LinkCost.Features {
+	private int size = 0;
+	private int[] x;
+	private int[] y;
+	private int[] t;
+	private float[] intensity;
+	private float[] subX;
+	private float[] subY;
+	private float[] amplitude;
+	private float[] sigma;
+	private float[] signal;
+	private float[] orientation;
+	// Spot.link() semantics: current.link(a) gives next[a] = current and prev[current] = a
+	private int[] next;
+	private int[] prev;
+	private int[] dx;
+	private int[] dy;
+	private boolean[] tracked;
+	// first spot of the track of every spot, rebuilt for drawing after a change of the links
+	private int[] roots = null;
+
+	public SpotTable() {
+		this(1024);
+	}
+
+	public SpotTable(int capacity) {
+		capacity = Math.max(16, capacity);
+		x = new int[capacity];
+		y = new int[capacity];
+		t = new int[capacity];
+		intensity = new float[capacity];
+		subX = new float[capacity];
+		subY = new float[capacity];
+		amplitude = new float[capacity];
+		sigma = new float[capacity];
+		signal = new float[capacity];
+		orientation = new float[capacity];
+		next = new int[capacity];
+		prev = new int[capacity];
+		dx = new int[capacity];
+		dy = new int[capacity];
+		tracked = new boolean[capacity];
+	}
+
+	// new unlinked spot (intensity NaN until measured)
+	public synchronized Spot add(int sx, int sy, int st) {
+		if (size == x.length) {
+			grow(2 * size);
+		}
+		int id = size++;
+		x[id] = sx;
+		y[id] = sy;
+		t[id] = st;
+		intensity[id] = Float.NaN;
+		subX[id] = sx;
+		subY[id] = sy;
+		amplitude[id] = Float.NaN;
+		sigma[id] = Float.NaN;
+		signal[id] = Float.NaN;
+		orientation[id] = Float.NaN;
+		next[id] = -1;
+		prev[id] = -1;
+		roots = null;
+		return new Spot(this, id);
+	}
+
+	private void grow(int capacity) {
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		t = Arrays.copyOf(t, capacity);
+		intensity = Arrays.copyOf(intensity, capacity);
+		subX = Arrays.copyOf(subX, capacity);
+		subY = Arrays.copyOf(subY, capacity);
+		amplitude = Arrays.copyOf(amplitude, capacity);
+		sigma = Arrays.copyOf(sigma, capacity);
+		signal = Arrays.copyOf(signal, capacity);
+		orientation = Arrays.copyOf(orientation, capacity);
+		next = Arrays.copyOf(next, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		dx = Arrays.copyOf(dx, capacity);
+		dy = Arrays.copyOf(dy, capacity);
+		tracked = Arrays.copyOf(tracked, capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Spot get(int id) {
+		return (id < 0) ? null : new Spot(this, id);
+	}
+
+	public int getX(int id) {
+		return x[id];
+	}
+
+	public int getY(int id) {
+		return y[id];
+	}
+
+	public int getT(int id) {
+		return t[id];
+	}
+
+	public float getIntensity(int id) {
+		return intensity[id];
+	}
+
+	public void setIntensity(int id, float value) {
+		intensity[id] = value;
+	}
+
+	// sub-pixel position, in pixel indices as getX() and getY()
+	public float getSubX(int id) {
+		return subX[id];
+	}
+
+	public float getSubY(int id) {
+		return subY[id];
+	}
+
+	public void setSubPixel(int id, float sx, float sy) {
+		subX[id] = sx;
+		subY[id] = sy;
+	}
+
+	public float getAmplitude(int id) {
+		return amplitude[id];
+	}
+
+	public float getSigma(int id) {
+		return sigma[id];
+	}
+
+	// position, amplitude and width (sigma) of the Gaussian fitted on the spot
+	public void setFit(int id, float sx, float sy, float a, float s) {
+		setSubPixel(id, sx, sy);
+		amplitude[id] = a;
+		sigma[id] = s;
+	}
+
+	// value of the frame at the spot (intensity term of the link cost)
+	public float getSignal(int id) {
+		return signal[id];
+	}
+
+	public void setSignal(int id, float value) {
+		signal[id] = value;
+	}
+
+	// value of the orientation map at the spot (orientation term of the link cost)
+	public float getOrientation(int id) {
+		return orientation[id];
+	}
+
+	public void setOrientation(int id, float value) {
+		orientation[id] = value;
+	}
+
+	// the columns are replaced when the table grows, they must be read again after add()
+	@Override
+	public float[] getColumn(int feature) {
+		switch (feature) {
+		case LinkCost.X:
+			return subX;
+		case LinkCost.Y:
+			return subY;
+		case LinkCost.INTENSITY:
+			return signal;
+		case LinkCost.ORIENTATION:
+			return orientation;
+		case LinkCost.SIZE:
+			return sigma;
+		default:
+			throw new IllegalArgumentException("Unknown feature " + feature);
+		}
+	}
+
+	public int getNext(int id) {
+		return next[id];
+	}
+
+	public int getPrev(int id) {
+		return prev[id];
+	}
+
+	// current.link(a) of Spot
+	public void link(int current, int a) {
+		next[a] = current;
+		prev[current] = a;
+		roots = null;
+	}
+
+	public boolean isTracked(int id) {
+		return tracked[id];
+	}
+
+	public void setTracked(int id, boolean value) {
+		tracked[id] = value;
+	}
+
+	public int getDx(int id) {
+		return dx[id];
+	}
+
+	public int getDy(int id) {
+		return dy[id];
+	}
+
+	public void setDirection(int id, int vx, int vy) {
+		dx[id] = vx;
+		dy[id] = vy;
+	}
+
+	// colour of the track of the spot, the same for all the spots of a track
+	public Color getColor(int id) {
+		if (roots == null) {
+			roots = findRoots();
+		}
+		// golden ratio steps spread the hues of consecutive ids
+		float hue = (float)((roots[id] * 0.6180339887498949) % 1.0);
+		return Color.getHSBColor(hue, 1f, 1f);
+	}
+
+	// the colour of a link goes from the linked spot to the new one (Spot.link), so to the end of next
+	private int[] findRoots() {
+		int[] r = new int[size];
+		Arrays.fill(r, -1);
+		int[] path = new int[16];
+		for (int id = 0; id < size; id++) {
+			int n = 0;
+			int s = id;
+			while (r[s] < 0 && next[s] >= 0) {
+				if (n == path.length) {
+					path = Arrays.copyOf(path, 2 * n);
+				}
+				path[n++] = s;
+				s = next[s];
+			}
+			int root = (r[s] < 0) ? s : r[s];
+			r[s] = root;
+			for (int k = 0; k < n; k++) {
+				r[path[k]] = root;
+			}
+		}
+		return r;
+	}
+}
@@ -1,7 +1,75 @@
 package ch.epfl.bii.ij2command.TirfTracking;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-public class Spots extends ArrayList<Spot> {
-	private static final long serialVersionUID = 1L;
+// spots of one frame, kept as the ids of their rows in one SpotTable
+// the Spot returned by get() and the iterator is a new view on the row, the ids are read with getId()
+public class Spots implements Iterable<Spot> {
+	private SpotTable table = null;
+	private int[] ids = new int[16];
+	private int size = 0;
 
+	// the spots of a frame must belong to the same table
+	public void add(Spot spot) {
+		add(spot.getTable(), spot.getId());
+	}
+
+	public void add(SpotTable owner, int id) {
+		if (table == null) {
+			table = owner;
+		}
+		else if (owner != table) {
+			throw new IllegalArgumentException("Cannot add spots of two different tables");
+		}
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, 2 * size);
+		}
+		ids[size++] = id;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	// id of the i-th spot in the table
+	public int getId(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+		}
+		return ids[i];
+	}
+
+	public Spot get(int i) {
+		return table.get(getId(i));
+	}
+
+	// null as long as the list is empty
+	public SpotTable getTable() {
+		return table;
+	}
+
+	@Override
+	public Iterator<Spot> iterator() {
+		return new Iterator<Spot>() {
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Spot next() {
+				if (i >= size) {
+					throw new NoSuchElementException();
+				}
+				return table.get(ids[i++]);
+			}
+		};
+	}
 }
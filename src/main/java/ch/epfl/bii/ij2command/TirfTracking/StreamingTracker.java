@@ -0,0 +1,303 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Streaming mode of TirfTracking for stacks larger than the memory.
+ *
+ *  The stack is read frame by frame (a memory-mapped TIFF, MappedTiff, or a virtual
+ *  stack from IJ.openVirtual) and only a sliding window of frames is kept:
+ *  - the exp-corrected frames of the temporal blur support or of the orientation map (5 frames),
+ *  - the DoG frames of the temporal (3D) Gaussian blur support.
+ *  Every frame goes through the same steps as the in-memory workflow (D2 to D7), the
+ *  spots of a frame are detected as soon as its temporal support is read, their
+ *  orientation value is read as soon as the orientation map of the previous frame
+ *  can be computed (frames t ... t+4), and the spots of frame t are linked as soon
+ *  as the features of frame t+5 are measured. The linking only reads the features
+ *  of the spots (SpotTable), the pixel arrays are dropped when they leave the
+ *  window, only the (small) spots are kept.
+ *
+ *  Differences with the in-memory workflow:
+ *  - the frames are processed in 32-bit (DogFilter rounds and clips as the 16-bit DoG),
+ *  - the orientation map is scaled to 8-bit with the range of its own frame,
+ *  - a first sequential pass collects the frame means and maxima (exp. fit, f1max).
+ */
+
+import java.util.function.IntFunction;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.RankFilters;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import ch.epfl.bii.ij2command.Utils.BleachCorrector;
+import ch.epfl.bii.ij2command.Utils.DogFilter;
+import ch.epfl.bii.ij2command.Utils.FrameStatistics;
+import ch.epfl.bii.ij2command.Utils.LinkCost;
+import ch.epfl.bii.ij2command.Utils.MappedTiff;
+import ch.epfl.bii.ij2command.Utils.MaxFilter;
+import ch.epfl.bii.ij2command.Utils.PixelSource;
+import ch.epfl.bii.ij2command.Utils.SpotGrid;
+import ch.epfl.bii.ij2command.Utils.TemporalFilter;
+
+public class StreamingTracker {
+	// linking horizon of TirfTracking (frames t+1 ... t+5)
+	private static final int HORIZON = 5;
+	// orientation filter of foreseeDirection()
+	private static final TemporalFilter FUTURE = new TemporalFilter(TemporalFilter.FUTURE, true);
+
+	private final TirfTracking tracker;
+	private final double lambda;
+	private final double gamma;
+	private final boolean expcor;
+	private final boolean diffuse;
+	private final double sigma1;
+	private final double sigma2;
+
+	// state of the current run
+	private int nt, nx, ny;
+	private int bitDepth;
+	private DogFilter dogFilter;
+	private Calibration cal;
+	private BleachCorrector corrector;
+	private float[] zkernel;
+	private int lag; // frames read after frame t before its features are complete
+	private float[][] corrected; // ring of exp-corrected frames
+	private float[][] dogs; // ring of DoG frames
+	private Spots[] spots;
+	private SpotGrid[] grids;
+
+	public StreamingTracker(TirfTracking tracker, double lambda, double gamma, boolean expcor, boolean diffuse, double sigma1, double sigma2) {
+		this.tracker = tracker;
+		this.lambda = lambda;
+		this.gamma = gamma;
+		this.expcor = expcor;
+		this.diffuse = diffuse;
+		this.sigma1 = sigma1;
+		this.sigma2 = sigma2;
+	}
+
+	// detect and link the spots of imp, the frames are read once in order (plus a statistics pass)
+	public Spots[] run(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		init(imp.getStackSize(), imp.getWidth(), imp.getHeight(), imp.getBitDepth(), imp.getCalibration());
+		// PASS 1. Frame means and maxima, in one sequential read of the stack
+		IJ.log("Streaming: statistics pass...");
+		FrameStatistics stats = FrameStatistics.measure(stack, null, null);
+		return run(stats, k -> {
+			ImageProcessor ip = stack.getProcessor(k + 1);
+			float[] f = MaxFilter.toFloat(ip);
+			// the corrected frame must not be the pixel array of a 32-bit slice
+			return (f == ip.getPixels()) ? f.clone() : f;
+		});
+	}
+
+	// same with the frames of a mapped TIFF, the corrected frames are read straight from the mapped pages
+	public Spots[] run(MappedTiff tiff) {
+		init(tiff.getSize(), tiff.getWidth(), tiff.getHeight(), tiff.getBitDepth(), tiff.getCalibration());
+		IJ.log("Streaming: statistics pass...");
+		FrameStatistics stats = FrameStatistics.measure(tiff, null);
+		return run(stats, k -> tiff.readFrame(k, null));
+	}
+
+	private void init(int size, int width, int height, int depth, Calibration calibration) {
+		nt = size;
+		nx = width;
+		ny = height;
+		// the corrected frames are not integer anymore
+		bitDepth = (expcor == true) ? 32 : depth;
+		dogFilter = new DogFilter(sigma1, Math.sqrt(2) * sigma2, true);
+		cal = calibration;
+	}
+
+	// frame(k) gives a new array with the values of frame k (zero-based)
+	private Spots[] run(FrameStatistics stats, IntFunction<float[]> frame) {
+		double[] maxs = stats.getMax();
+		IJ.showProgress(nt, 2 * nt);
+		// STEP D2. Exponential model fitted on the mean of every frame, as expgetparameter()
+		double f1max = 0;
+		if (expcor == true) {
+			int[] ind = new int[nt];
+			for (int t = 0; t < nt; t++) {
+				ind[t] = t;
+			}
+			double[] params = tracker.exponentialfit2(ind, stats.getMean());
+			corrector = new BleachCorrector(Math.abs(1/params[1]), params[2]);
+		}
+		for (int t = 0; t < nt; t++) {
+			f1max = Math.max(f1max, correct(maxs[t], t));
+		}
+		double f2max = 255;
+		double dmax = Math.sqrt(nx*nx + ny*ny);
+		LinkCost cost = tracker.linkCost(lambda, gamma, dmax, f1max, f2max);
+
+		// PASS 2. Sliding window over the frames
+		IJ.log("Streaming: detection and linking...");
+		zkernel = new GaussianBlur().makeGaussianKernel(1, 0.0002, nt)[0];
+		int zr = zkernel.length - 1;
+		// detection of frame t (t+zr read) and orientation map of frame t-1 (t+4 read)
+		lag = Math.max(zr, HORIZON - 1);
+		corrected = new float[lag + 1][];
+		dogs = new float[2 * zr + 1][];
+		spots = new Spots[nt];
+		grids = new SpotGrid[nt];
+		for (int k = 0; k < nt; k++) {
+			// STEP D2. Exponential correction
+			float[] c = frame.apply(k);
+			if (expcor == true) {
+				corrector.correct(c, k, c);
+			}
+			corrected[k % corrected.length] = c;
+			// STEP D3. DoG
+			dogs[k % dogs.length] = dog(c);
+			// STEP D4-D6. The temporal support of frame k-zr is complete
+			if (k - zr >= 0) {
+				detect(k - zr);
+			}
+			// STEP L0. The frames of the orientation map of frame k-lag-1 are read
+			if (k - lag >= 0) {
+				orient(k - lag);
+			}
+			if (k - lag - HORIZON >= 0) {
+				link(k - lag - HORIZON, cost);
+			}
+			IJ.showProgress(nt + k, 2 * nt);
+		}
+		// the last frames use the edge frame as temporal support
+		for (int d = Math.max(0, nt - zr); d < nt; d++) {
+			detect(d);
+		}
+		for (int d = Math.max(0, nt - lag); d < nt; d++) {
+			orient(d);
+		}
+		for (int t = Math.max(0, nt - lag - HORIZON); t < nt - 1; t++) {
+			link(t, cost);
+		}
+		IJ.showProgress(1.0);
+		corrected = null;
+		dogs = null;
+		grids = null;
+		return spots;
+	}
+
+	// STEP D2. (v-C)*exp(t/tau)+C
+	private double correct(double v, int t) {
+		if (expcor == true) {
+			return corrector.correct(v, t);
+		}
+		return v;
+	}
+
+	// STEP D3. DoG of one frame, same sigmas as TirfTracking.dog()
+	private float[] dog(float[] c) {
+		float[] out = new float[c.length];
+		dogFilter.filter(c, nx, ny, bitDepth, out);
+		return out;
+	}
+
+	// STEP D4-D6. Temporal Gaussian blur, top-hat and detection of frame d
+	private void detect(int d) {
+		int zr = zkernel.length - 1;
+		float[] g = new float[nx * ny];
+		for (int j = -zr; j <= zr; j++) {
+			float w = zkernel[Math.abs(j)];
+			float[] f = dogs[Math.min(nt - 1, Math.max(0, d + j)) % dogs.length];
+			for (int i = 0; i < g.length; i++) {
+				g[i] += w * f[i];
+			}
+		}
+		FloatProcessor fp = new FloatProcessor(nx, ny, g);
+		new RankFilters().rank(fp, 2, RankFilters.TOP_HAT);
+		if (diffuse == true) {
+			// STEP D6a. Default threshold (dark background) and center of mass of the particles
+			fp.setAutoThreshold(AutoThresholder.Method.Default, true, ImageProcessor.NO_LUT_UPDATE);
+			double lower = fp.getMinThreshold();
+			double upper = fp.getMaxThreshold();
+			ByteProcessor binary = new ByteProcessor(nx, ny);
+			for (int i = 0; i < g.length; i++) {
+				if (g[i] >= lower && g[i] <= upper) {
+					binary.set(i, 255);
+				}
+			}
+			spots[d] = tracker.detectParticles(binary, d, cal);
+		}
+		else {
+			// STEP D6b. Unique local maxima above 8 std
+			double threshold = 8 * ImageStatistics.getStatistics(fp, Measurements.STD_DEV, cal).stdDev;
+			spots[d] = new Spots();
+			for (int index : MaxFilter.localMaxima(fp, 7, true)) {
+				if (g[index] > threshold) {
+					Spot spot = tracker.getSpotTable().add(index % nx, index / nx, d);
+					spot.setIntensity(g[index]);
+					spots[d].add(spot);
+				}
+			}
+			// STEP D6c. Sub-pixel position of the maxima, fitted on the corrected frame
+			tracker.refineSpots(new WindowPixels(), new Spots[] {spots[d]});
+		}
+		// STEP L0. Intensity feature, the value of the corrected frame at the spots
+		SpotTable table = tracker.getSpotTable();
+		PixelSource pixels = new WindowPixels();
+		for (Spot spot : spots[d]) {
+			table.setSignal(spot.getId(), pixels.getValue(d, spot.x, spot.y));
+		}
+		grids[d] = tracker.buildGrid(spots[d], tracker.densityBound(diffuse));
+	}
+
+	// STEP L0. Orientation feature of the spots of frame d, from the orientation map of frame d-1
+	private void orient(int d) {
+		if (d == 0) {
+			return;
+		}
+		float[] map = orientation(d - 1);
+		SpotTable table = tracker.getSpotTable();
+		for (Spot spot : spots[d]) {
+			if (spot.x >= 0 && spot.x < nx && spot.y >= 0 && spot.y < ny) {
+				table.setOrientation(spot.getId(), map[spot.y * nx + spot.x]);
+			}
+		}
+	}
+
+	// LINKING of frame t, the features of the frames t ... t+5 are measured
+	private void link(int t, LinkCost cost) {
+		tracker.linkFrame(spots, grids, t, cost, diffuse, nx, ny);
+		// the grid of frame t is not needed by the next frames
+		grids[t] = null;
+	}
+
+	// STEP D7. Orientation map of frame t: temporal filter, inverted and scaled to 8-bit
+	private float[] orientation(int t) {
+		float[] out = new float[nx * ny];
+		FUTURE.filter(i -> corrected[i % corrected.length], nt, t, 0, out.length, out);
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (float v : out) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		float range = (max > min) ? (max - min) : 1;
+		for (int i = 0; i < out.length; i++) {
+			out[i] = Math.round(255 * (max - out[i]) / range);
+		}
+		return out;
+	}
+
+	// corrected frames of the window
+	private class WindowPixels implements PixelSource {
+		@Override
+		public float getValue(int n, int x, int y) {
+			if (x < 0 || x >= nx || y < 0 || y >= ny) {
+				return Float.NaN;
+			}
+			return corrected[n % corrected.length][y * nx + x];
+		}
+	}
+}
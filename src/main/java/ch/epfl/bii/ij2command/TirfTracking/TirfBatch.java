@@ -0,0 +1,207 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Headless batch runner of TirfTracking over a directory (or a glob) of TIFF movies.
+ *
+ *  Usage:
+ *  java -cp <classpath> ch.epfl.bii.ij2command.TirfTracking.TirfBatch <movies> <output folder> [options]
+ *    <movies>          a directory (all .tif/.tiff files) or a glob such as "/data/2023/cell_*.tif"
+ *    --lambda <v>      intensity weight of the cost (default 0.2)
+ *    --gamma <v>       orientation weight of the cost (default 0.3)
+ *    --expcor          exponential (bleaching) correction
+ *    --diffuse         diffusing particles (center of mass detection)
+ *    --workers <n>     movies processed at the same time (default 2)
+ *    --threads <n>     frames detected at the same time in each movie (default cores/workers),
+ *                      the movies tracked at the same time share workers*n threads
+ *    --gzip            write Spots.csv.gz instead of Spots.csv
+ *    --streaming       streaming mode: the frames of uncompressed TIFFs are memory-mapped,
+ *                      only a window of frames is in memory (no --export)
+ *    --columns         also write the binary columnar file Spots.trj (ColumnarTrajectoryWriter)
+ *    --export          also draw the trajectories into <output folder>/<movie>/Trajectories.avi
+ *
+ *  The trajectories of <movie>.tif are saved in <output folder>/<movie>/Spots.csv(.gz)
+ *  (and Spots.trj), their MSD analysis in <output folder>/<movie>/Tracks.csv.
+ *  No window is created, the failure of one movie does not stop the others.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+public class TirfBatch {
+	static {
+		// ImageJ 1.x is patched to run its commands (IJ.run) without a display
+		System.setProperty("java.awt.headless", "true");
+		net.imagej.patcher.LegacyInjector.preinit();
+	}
+
+	private double lambda = 0.2;
+	private double gamma = 0.3;
+	private boolean expcor = false;
+	private boolean diffuse = false;
+	private int workers = 2;
+	private int threads = -1;
+	private boolean export = false;
+	private boolean gzip = false;
+	private boolean columns = false;
+	private boolean streaming = false;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: TirfBatch <directory|glob> <output folder> [--lambda v] [--gamma v] [--expcor] [--diffuse] [--workers n] [--threads n] [--streaming] [--gzip] [--columns] [--export]");
+			System.exit(2);
+		}
+		TirfBatch batch = new TirfBatch();
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+			case "--lambda":
+				batch.lambda = Double.parseDouble(args[++i]);
+				break;
+			case "--gamma":
+				batch.gamma = Double.parseDouble(args[++i]);
+				break;
+			case "--expcor":
+				batch.expcor = true;
+				break;
+			case "--diffuse":
+				batch.diffuse = true;
+				break;
+			case "--workers":
+				batch.workers = Math.max(1, Integer.parseInt(args[++i]));
+				break;
+			case "--threads":
+				batch.threads = Math.max(1, Integer.parseInt(args[++i]));
+				break;
+			case "--gzip":
+				batch.gzip = true;
+				break;
+			case "--streaming":
+				batch.streaming = true;
+				break;
+			case "--columns":
+				batch.columns = true;
+				break;
+			case "--export":
+				batch.export = true;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		List<Path> movies = findMovies(args[0]);
+		int failed = batch.run(movies, Paths.get(args[1]));
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	// the .tif/.tiff files of a directory, or the files matching a glob
+	public static List<Path> findMovies(String pattern) throws IOException {
+		Path dir = Paths.get(pattern);
+		if (Files.isDirectory(dir)) {
+			try (Stream<Path> files = Files.list(dir)) {
+				return files.filter(Files::isRegularFile)
+						.filter(p -> p.getFileName().toString().toLowerCase().matches(".*\\.tiff?"))
+						.sorted()
+						.collect(Collectors.toList());
+			}
+		}
+		// the files are searched from the part of the pattern before the first wildcard
+		int wildcard = pattern.length();
+		for (char c : new char[] {'*', '?', '[', '{'}) {
+			int k = pattern.indexOf(c);
+			if (k >= 0) {
+				wildcard = Math.min(wildcard, k);
+			}
+		}
+		int slash = Math.max(pattern.lastIndexOf('/', wildcard), pattern.lastIndexOf(File.separatorChar, wildcard));
+		Path root = Paths.get(slash < 0 ? "." : pattern.substring(0, slash + 1));
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(slash + 1));
+		if (Files.isDirectory(root) == false) {
+			return Collections.emptyList();
+		}
+		try (Stream<Path> files = Files.walk(root)) {
+			return files.filter(Files::isRegularFile)
+					.filter(p -> matcher.matches(root.relativize(p)))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	// track every movie with a pool of "workers" threads, returns the number of failed movies
+	public int run(List<Path> movies, Path output) throws InterruptedException {
+		int perMovie = (threads > 0) ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+		IJ.log("Batch of " + movies.size() + " movies, " + workers + " workers, " + perMovie + " threads per movie");
+		// the parallel loops of the workers run in the same pool (FrameParallel), of workers*perMovie threads
+		int shared = workers * perMovie;
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Future<?>> results = new ArrayList<>();
+		for (Path movie : movies) {
+			results.add(pool.submit(() -> {
+				track(movie, output, shared);
+				return null;
+			}));
+		}
+		pool.shutdown();
+		int failed = 0;
+		for (int i = 0; i < movies.size(); i++) {
+			try {
+				results.get(i).get();
+			}
+			catch (ExecutionException e) {
+				failed++;
+				IJ.log("FAILED " + movies.get(i) + ": " + e.getCause());
+			}
+		}
+		IJ.log("Batch done, " + (movies.size() - failed) + " movies tracked, " + failed + " failed");
+		return failed;
+	}
+
+	// tracking of one movie, the csv is written in output/<movie name>/
+	private void track(Path movie, Path output, int parallelism) throws IOException {
+		long start = System.currentTimeMillis();
+		String name = movie.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+		Path folder = output.resolve(name);
+		Files.createDirectories(folder);
+		TirfTracking tracker = new TirfTracking();
+		tracker.setHeadless(true);
+		tracker.setParallelism(parallelism);
+		tracker.setCsvName(gzip ? "Spots.csv.gz" : "Spots.csv");
+		if (columns == true) {
+			tracker.setColumnsName("Spots.trj");
+		}
+		if (streaming == true) {
+			// the stack is never loaded, so there is nothing to export
+			tracker.trackStreaming(movie, lambda, gamma, expcor, diffuse, folder.toString());
+			IJ.log("Tracked " + movie + " in " + (System.currentTimeMillis() - start) / 1000 + " s");
+			return;
+		}
+		ImagePlus imp = IJ.openImage(movie.toString());
+		if (imp == null) {
+			throw new IOException("Cannot open " + movie);
+		}
+		Spots[] spots = tracker.track(imp, lambda, gamma, expcor, diffuse, folder.toString());
+		if (export == true) {
+			// drawn in the pixels, no overlay is built
+			tracker.exportTrajectories(imp, spots, folder.resolve("Trajectories.avi").toString());
+		}
+		imp.close();
+		IJ.log("Tracked " + movie + " in " + (System.currentTimeMillis() - start) / 1000 + " s");
+	}
+}
@@ -16,15 +16,30 @@ import java.nio.file.Paths;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.GenericDialog;
-import ij.gui.Overlay;
-import ij.gui.Roi;
 import ij.gui.Plot;
 import ij.measure.CurveFitter;
-import ij.plugin.ImageCalculator;
 import ij.process.ImageProcessor;
-import ij.plugin.frame.RoiManager;
 import ij.measure.Measurements;
+import ij.measure.Calibration;
+import ij.plugin.filter.AVI_Writer;
+import ij.process.ImageStatistics;
+
+import ch.epfl.bii.ij2command.Utils.BleachCorrector;
+import ch.epfl.bii.ij2command.Utils.ConnectedComponents;
+import ch.epfl.bii.ij2command.Utils.DogFilter;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+import ch.epfl.bii.ij2command.Utils.FrameStatistics;
+import ch.epfl.bii.ij2command.Utils.GaussianFit;
+import ch.epfl.bii.ij2command.Utils.LinkCost;
+import ch.epfl.bii.ij2command.Utils.MaxFilter;
+import ch.epfl.bii.ij2command.Utils.MappedTiff;
+import ch.epfl.bii.ij2command.Utils.PixelSource;
+import ch.epfl.bii.ij2command.Utils.SparseAssignment;
+import ch.epfl.bii.ij2command.Utils.SpotGrid;
+import ch.epfl.bii.ij2command.Utils.StackPixels;
+import ch.epfl.bii.ij2command.Utils.TemporalFilter;
 
 // for object serialization
 import java.io.*;
@@ -32,6 +47,60 @@ import java.io.*;
 @Plugin(type = Command.class, menuPath = "Plugins>BII 2023>TIRFTracking")
 public class TirfTracking implements Command {
 	
+	// upper bound of the cost of a link, more expensive pairs are never linked
+	public static final double MAX_LINK_COST = 1;
+	// frames of links drawn behind the spots of the frame shown
+	public static final int TAIL = 20;
+	// sub-pixel fit of the spots: 7x7 window, first guess of the width, spots per parallel task
+	public static final int FIT_RADIUS = 3;
+	public static final double FIT_SIGMA = 1;
+	private static final int FIT_BLOCK = 1024;
+	
+	// number of frames detected at the same time
+	private int parallelism = FrameParallel.getDefaultParallelism();
+	
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	// no window is created (images, plots, overlays) when the plugin runs in batch
+	private boolean headless = false;
+	// name of the trajectory file in the output folder, gzip-compressed if it ends with .gz
+	private String csvName = "Spots.csv";
+
+	public void setCsvName(String csvName) {
+		this.csvName = csvName;
+	}
+
+	// per-trajectory MSD analysis (TrajectoryAnalysis) in the output folder
+	public static final String TRACKS_NAME = "Tracks.csv";
+	// name of the binary columnar copy of the trajectories (ColumnarTrajectoryWriter), none if null
+	private String columnsName = null;
+
+	public void setColumnsName(String columnsName) {
+		this.columnsName = columnsName;
+	}
+
+	// all the spots of the movie being tracked, the per-frame lists hold the ids of its rows
+	private SpotTable spotTable = new SpotTable();
+
+	public SpotTable getSpotTable() {
+		return spotTable;
+	}
+
+	// a new table for the next movie
+	public void newSpotTable() {
+		spotTable = new SpotTable();
+	}
+	
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+	
 	public void run() {
 		// generate a generic dialog
 		GenericDialog gd = new GenericDialog("TIRF particle tracking");
@@ -40,10 +109,13 @@ public class TirfTracking implements Command {
 		gd.addFileField("Image stack path (.tif): ", "C:\\EPFL\\2022-2023 Microtechnique MA4\\Bioimage informatics\\l_4360-crop_outer_long_traj.tif");
 		gd.addNumericField("Lambda (0-1): ", 0.2);
 		gd.addNumericField("Gamma (0-1): ", 0.3);
+		gd.addNumericField("Parallel threads: ", parallelism, 0);
 		gd.setInsets(0, 180, 0);
 		gd.addCheckbox("Exponential correction", false);
 		gd.setInsets(0, 180, 0);
 		gd.addCheckbox("Diffusing particle", false);
+		gd.setInsets(0, 180, 0);
+		gd.addCheckbox("Streaming mode (stack larger than memory)", false);
 		gd.addMessage("\nAuthors: Bioimage Informatics Group 8. Y.Chiang, C.Liu, K.Aydin (2023.05)");
 		gd.showDialog();
 		if(gd.wasCanceled()) {
@@ -57,9 +129,69 @@ public class TirfTracking implements Command {
         
 		double lambda = (double)gd.getNextNumber();
 		double gamma = (double)gd.getNextNumber();
+		setParallelism((int)gd.getNextNumber());
 		boolean expcor = (boolean)gd.getNextBoolean();
 		boolean diffuse = (boolean)gd.getNextBoolean();
+		boolean streaming = (boolean)gd.getNextBoolean();
 		
+		// STREAMING. The frames are read lazily and only a window of frames is kept in memory
+		if (streaming == true) {
+			trackStreaming(path, lambda, gamma, expcor, diffuse, folder);
+			IJ.log("No trajectory overlay in streaming mode (the stack is not loaded)");
+			return;
+		}
+		
+		ImagePlus imp = IJ.openImage(imagePath);
+		imp.show();
+		track(imp, lambda, gamma, expcor, diffuse, folder);
+	}
+	
+	// STREAMING TRACKING of the movie file, the frames of an uncompressed TIFF are memory-mapped
+	// (no copy of the stack in the heap), other files are read as a virtual stack
+	public Spots[] trackStreaming(Path path, double lambda, double gamma, boolean expcor, boolean diffuse, String folder) {
+		double sigma1 = 1;
+		double sigma2 = (diffuse == true) ? 6 : Math.sqrt(2)*sigma1;
+		newSpotTable();
+		StreamingTracker streamer = new StreamingTracker(this, lambda, gamma, expcor, diffuse, sigma1, sigma2);
+		Spots[] spots;
+		MappedTiff tiff = null;
+		try {
+			tiff = MappedTiff.open(path);
+		}
+		catch (IOException e) {
+			IJ.log("The frames cannot be mapped (" + e.getMessage() + "), reading a virtual stack");
+		}
+		if (tiff != null) {
+			IJ.log("The dataset have " + tiff.getSize() + " time frames (streaming mode, mapped)");
+			try {
+				spots = streamer.run(tiff);
+			}
+			finally {
+				try {
+					tiff.close();
+				}
+				catch (IOException e) {
+					IJ.log("Error closing " + path + ": " + e.getMessage());
+				}
+			}
+		}
+		else {
+			ImagePlus vimp = IJ.openVirtual(path.toString());
+			if (vimp == null) {
+				throw new UncheckedIOException(new IOException("Cannot open " + path));
+			}
+			vimp.setDimensions(1, 1, vimp.getStackSize());
+			IJ.log("The dataset have " + vimp.getNFrames() + " time frames (streaming mode)");
+			spots = streamer.run(vimp);
+			vimp.close();
+		}
+		analyzeTrajectories(spots, folder);
+		return spots;
+	}
+
+	// TRACKING of one movie, from the detection to the trajectory analysis saved in folder
+	public Spots[] track(ImagePlus imp, double lambda, double gamma, boolean expcor, boolean diffuse, String folder) {
+		newSpotTable();
 		// IMAGE PROCESSING VARIABLES
 		double sigma1, sigma2;
 		if (diffuse == true) {
@@ -74,15 +206,13 @@ public class TirfTracking implements Command {
 		
 		// DETECTION
 		// general parameters
-		ImagePlus imp = IJ.openImage(imagePath);
-		imp.show();
 		int nz = imp.getNSlices();
 		int xmax = imp.getWidth();
 		int ymax = imp.getHeight();
 		
 		// start the workflow
 		// STEP D1. Hyperstack reordering
-		IJ.run("Coordinates...", "left=0 right="+xmax+" top=0 bottom="+ymax+" front=0 back="+nz);
+		IJ.run(imp, "Coordinates...", "left=0 right="+xmax+" top=0 bottom="+ymax+" front=0 back="+nz);
 		imp.setDimensions(1, 1, nz);
 		int nt = imp.getNFrames();
 		IJ.log("The dataset have " + nt + " time frames");
@@ -99,86 +229,54 @@ public class TirfTracking implements Command {
 		// STEP D5. TopHat filtering
 		IJ.run(imp_dog, "Top Hat...", "radius=2 stack");
 		
-		ImagePlus imp_dog_traj = imp_dog.duplicate();
-		ImagePlus imp_dog_arrw = imp_dog.duplicate();
-		
 		// STEP D6. Detect spots either with local max or center of mass method
-		ArrayList<Spot> spots[];
+		Spots spots[];
 		if (diffuse == true) {
 			spots = thresDetect(imp_dog, nt, xmax, ymax);
 		}
 		else {
 			int bd = 7;
 			int threstime = 8;
-			ArrayList<Spot> localmax[] = localMax(imp_dog, bd);
+			Spots localmax[] = localMax(imp_dog, bd);
 			spots = localMaxfilter(imp_dog, localmax, threstime);
+			// STEP D6c. Sub-pixel position of the maxima, fitted on the (corrected) frames
+			int fitted = refineSpots(new StackPixels(imp), spots);
+			IJ.log("Sub-pixel positions: " + fitted + " spots fitted");
 		}
 		
 		// STEP D7. Prepare the orientation term images
 		ImagePlus imp_future = foreseeDirection(imp);
-		imp_future.show();
+		if (headless == false) {
+			imp_future.show();
+		}
 		
 		// LINKING
 		IJ.log("Start particle linking...");
-		// cost function
-		double f1max = findMax(imp, nt);
-		//IJ.log("f1max "+f1max);
-		double f2max = findMax(imp_future, nt);
-		//IJ.log("f2max "+f2max);
-		double dmax = Math.sqrt(xmax*xmax + ymax*ymax);
-		//IJ.log("dmax "+dmax);
-		double intdiff = 0;
-		double dirvalue = 0;
-		double temp_cost = 1;
-		double long_link;
+		linkSpots(spots, imp, imp_future, lambda, gamma, diffuse);
 		
-		for (int t = 0; t < nt - 1; t++) {
-			int indc = 0;
-			for (Spot current : spots[t]) {
-				double min_cost = 1;
-				int min_ind = 0;
-				int min_ts = 1;
-				boolean findspot = false;
-				// find candidates in next "few frames"
-				for (int ts = 1; ts < Math.min(nt-t, 6); ts++) {
-					// STEP L1. Estimate the local density of spots and compute a good long_link
-					long_link = estimateLocalDens(current, spots, t, ts, xmax, ymax, diffuse);
-					//System.out.println(long_link);
-					int indn = 0;
-					for (Spot next : spots[t+ts]) {
-						// STEP L2. Compute each cost terms
-						intdiff = findIntdiff(imp, t, current, next);
-						dirvalue = findDirValue(imp_future, t, next);
-						// STEP L3. Compute the cost and locate the best candidate
-						temp_cost = getCOST(current, next, dmax, f1max, lambda, intdiff, f2max, gamma, dirvalue);
-						if (temp_cost <= min_cost && current.distance(next) <= long_link) {
-							min_cost = temp_cost;
-							min_ind = indn;
-							min_ts = ts;
-							findspot = true;
-						}
-						indn++;
-					}
-					if (findspot == true) {
-						break;
-					}
-				}
-				// STEP L4. Form links
-				if (findspot == true) {
-					int nextt = t+min_ts;
-					System.out.println("Link (" + t + ", " + indc + ") to (" + nextt + ", " + min_ind + ")");
-					Spot good_next = spots[t+min_ts].get(min_ind);
-					current.link(good_next);
-				}
-				else {
-					//System.out.println("No link found, long_link");
-				}
-				indc++;
-			}
+		analyzeTrajectories(spots, folder);
+		if (headless == true) {
+			return spots;
 		}
 		
+		IJ.log("Finalizing the visualization...");
+		ImagePlus imp_dog_traj = imp_dog.duplicate();
+		ImagePlus imp_dog_arrw = imp_dog.duplicate();
+		imp_dog_traj.show();
+		imp_dog_arrw.show();
+		// Overlay of trajectories, only the ROIs of the frame shown are created
+		new TrajectoryRenderer(spots, TrajectoryRenderer.TRAJECTORIES, radius, TAIL).attach(imp_dog_traj);
+		// Overlay direction arrows of the long trajectories (displacement > 5 pixel)
+		new TrajectoryRenderer(spots, TrajectoryRenderer.DIRECTIONS, radius, TAIL).attach(imp_dog_arrw);
+		return spots;
+	}
+
+	
+	// TRAJECTORY ANALYSIS. Trace the linked spots into trajectories, characterize and save them
+	public ArrayList<ArrayList<int[]>> analyzeTrajectories(Spots[] spots, String folder) {
 		IJ.log("Tracing individual trajectories...");
 		ArrayList<ArrayList<int[]>> Arrayofall = new ArrayList<>();
+		SpotTable table = spotTable;
 		
 		// TRAJECTORY ANALYSIS
 		// STEP T1. Convert Spots to a list of trajectories for later parameter computation
@@ -186,92 +284,106 @@ public class TirfTracking implements Command {
 		// In an order of finding one spot and tracking all of its trajectory points, then switch to the next beginning spot.
 		// Add Arrayofone into Arrayofall.
 		
-		for (int t = 0; t < nt-1; t++) {
-		    for (Spot current : spots[t]) {
-		        if (current.track == false) {
-		        	Spot first = current;
-		        	while(first.prev != null) {
-		        		first = first.prev;
-		        	}
-		        	assignDirections(first);
-		            ArrayList<int[]> Arrayofone = new ArrayList<>();
-		            Arrayofone = findNext(first, Arrayofone);
-		            Arrayofall.add(Arrayofone);
-		        }
-		    }
+		// STEP T2. Characterize every trajectory with its diffusion coefficient and speed
+		// STEP T3. Save it in the csv file as soon as it is traced
+		ArrayList<Double> diffList = new ArrayList<>();
+		ArrayList<Double> speedList = new ArrayList<>();
+		Path csv = Paths.get(folder, csvName);
+		IJ.log("Saving the data in " + csv + "...");
+		Path columnar = (columnsName != null) ? Paths.get(folder, columnsName) : null;
+		try (TrajectoryWriter writer = new TrajectoryWriter(csv);
+				ColumnarTrajectoryWriter columns = (columnar != null) ? new ColumnarTrajectoryWriter(columnar) : null) {
+			int nt = spots.length;
+			for (int t = 0; t < nt-1; t++) {
+			    for (Spot current : spots[t]) {
+			        if (current.isTracked() == false) {
+			        	Spot first = current;
+			        	while(first.getPrev() != null) {
+			        		first = first.getPrev();
+			        	}
+			        	assignDirections(first);
+			        	table = first.getTable();
+			            ArrayList<int[]> Arrayofone = new ArrayList<>();
+			            Arrayofone = findNext(first, Arrayofone);
+			            Arrayofall.add(Arrayofone);
+			            double diffCoeff = diffusionCoefficient(Arrayofone);
+			            double speed = speed(Arrayofone);
+			            diffList.add(diffCoeff);
+			            speedList.add(speed);
+			            writer.writeTrack(Arrayofall.size(), Arrayofone, speed, diffCoeff);
+			            if (columns != null) {
+			            	columns.writeTrack(Arrayofall.size(), Arrayofone, speed, diffCoeff);
+			            }
+			        }
+			    }
+			}
+			IJ.log("Saved " + writer.getRows() + " rows");
 		}
+		catch (IOException e) {
+			// a batch marks the movie as failed
+			throw new UncheckedIOException("Error writing the trajectories in " + folder, e);
+		}
+		double[] diffCoeffs = toArray(diffList);
+		double[] speeds = toArray(speedList);
+		IJ.log("Average diffusion coefficient is: " + average(diffCoeffs));
+		IJ.log("Average speed is: " + average(speeds));
 		
-		
-		// STEP T2. Characterize the trajectories with diffusion coefficient and speed
-		double[] diffCoeffs = diffusionCalculator(Arrayofall);
-		double[] speeds = speedCalculator(Arrayofall);
-		
-		IJ.log("Saving the data...");
-		
-		// STEP T3. Save results as csv
+		// STEP T4. MSD curves of every trajectory, fits of D and alpha, confinement
+		IJ.log("MSD analysis of " + Arrayofall.size() + " trajectories...");
+		// on the sub-pixel positions of the spots
+		TrajectoryAnalysis analysis = TrajectoryAnalysis.analyze(Arrayofall, table, parallelism);
+		double[] msdDiffs = TrajectoryAnalysis.defined(analysis.getDiffusion());
+		double[] alphas = TrajectoryAnalysis.defined(analysis.getAlpha());
+		IJ.log("Average diffusion coefficient (MSD fit) is: " + average(msdDiffs));
+		IJ.log("Average anomalous exponent is: " + average(alphas));
+		Path summary = Paths.get(folder, TRACKS_NAME);
 		try {
-			saveCoordinates(Arrayofall, speeds, diffCoeffs, folder);
-		} catch (Exception e) {
-			System.out.println("Error writing to the file");
+			analysis.save(summary);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Error writing " + summary, e);
 		}
-	
-		IJ.log("Saved the data");
 		
 		IJ.log("Plotting...");
 		
 		// STEP T5. Plot histograms
-		drawHistogram(diffCoeffs, "Diffusion Coefficients", "Pixel^2/s");
-		
-		drawHistogram(speeds, "Speeds", "Pixel/s");
-		IJ.log("Plots done");
-		
-		IJ.log("Finalizing the visualization... (takes tens of minutes for raw images)");
-		// Create overlay of trajectories
-		Overlay overlay_traj = new Overlay();
-		draw(overlay_traj, spots, radius);
-		// Overlay direction arrows of the long trajectories (displacement > 5 pixel)
-		Overlay overlay_arrw = new Overlay();
-		drawDirections(overlay_arrw, spots, radius);
-		imp_dog_traj.setOverlay(overlay_traj);
-		imp_dog_arrw.setOverlay(overlay_arrw);
-		imp_dog_traj.show();
-		imp_dog_arrw.show();
+		if (headless == false) {
+			drawHistogram(msdDiffs, "Diffusion Coefficients", "Pixel^2/frame");
+			
+			drawHistogram(alphas, "Anomalous Exponents", "alpha");
+			
+			drawHistogram(speeds, "Speeds", "Pixel/s");
+			IJ.log("Plots done");
+		}
+		return Arrayofall;
 	}
 
-	
 	// STEP D2. exponential correction
 	public ImagePlus imagecorrection(ImagePlus imp, int nt, int nx, int ny) {
 		//System.out.println("Step D1. Exponential Detection...");
 		// plot the z-intensity profile before processing
-		IJ.run(imp, "Select All", "");
-		IJ.run(imp, "Plot Z-axis Profile", "");
-		IJ.run(imp, "32-bit", "");
-		ImagePlus out = imp.duplicate();
-		out.show();
-		
+		if (headless == false) {
+			IJ.run(imp, "Select All", "");
+			IJ.run(imp, "Plot Z-axis Profile", "");
+		}
 		// Get parameters
 		double[] params = expgetparameter(imp, nt);
 		// double A = params[0];
 		double tau = params[1];
 		double C = params[2];
-		for(int t=0; t<nt; t++) {
-			imp.setSlice(t+1);
-			out.setSlice(t+1);
-			ImageProcessor iin = imp.getProcessor();
-			ImageProcessor iout = out.getProcessor();
-			for (int x = 0; x < nx; x++) {
-				for (int y = 0; y < ny; y++) {
-					double new_v = iin.getPixelValue(x, y);
-					new_v = (new_v-C)*Math.exp(t/tau)+C;
-					iout.putPixelValue(x, y, new_v);
-				}
-			}	
+		// one gain per frame, a batch corrects the movie in place (no duplicate)
+		BleachCorrector corrector = new BleachCorrector(tau, C);
+		ImagePlus out = corrector.correct(imp, headless, parallelism);
+		if (headless == false) {
+			out.show();
 		}
 		out.setSlice(1);
 		out.setTitle("out");
 		// plot the z-intensity profile after processing
-		IJ.run(out, "Select All", "");
-		IJ.run(out, "Plot Z-axis Profile", "");
+		if (headless == false) {
+			IJ.run(out, "Select All", "");
+			IJ.run(out, "Plot Z-axis Profile", "");
+		}
 		return out;
 	}
 	
@@ -287,17 +399,14 @@ public class TirfTracking implements Command {
 		return coefficients;
 	}
 	
-	// STEP D2. use three time point to evaluate the parameter of the exponential model
+	// STEP D2. fit the exponential model on the mean of every frame (a single pass over the stack)
 	public double[] expgetparameter(ImagePlus imp, int nt) {
-		int[] ind = {0,nt/3,2*nt/3, nt-1};
-		double[] mean_stack = new double[ind.length];
+		FrameStatistics stats = FrameStatistics.measure(imp, null);
+		int[] ind = new int[stats.getSize()];
 		for (int i = 0; i < ind.length; i++) {
-			imp.setSlice(ind[i]+1); // t is one-based
-			double mean = imp.getStatistics().mean;
-			//System.out.println(mean);
-			mean_stack[i] = mean;
+			ind[i] = imp.convertIndexToPosition(i+1)[2]-1; // t is zero-based
 		}
-		double[] params = exponentialfit2(ind, mean_stack);
+		double[] params = exponentialfit2(ind, stats.getMean());
 		double A = params[0];
 		double tau = Math.abs(1/params[1]);
 		double C = params[2];
@@ -305,161 +414,166 @@ public class TirfTracking implements Command {
 		return new double[]{A, tau, C};
 	}
 	
-	private void draw(Overlay overlay, ArrayList<Spot> spots[], int radius) {
-		int nt = spots.length;
-		for (int t = 0; t < nt; t++) {
-			// print the time point
-			//System.out.println("overlaying time point: " + (t+1));
-			for (Spot spot : spots[t]) {
-				// call the draw function in the Spot class
-				spot.draw(overlay, radius);
-			}
+	// STEP T6. Export the trajectories drawn in the frames of base, as an AVI (path ending with .avi) or a TIFF stack
+	public void exportTrajectories(ImagePlus base, Spots spots[], String path) throws IOException {
+		ImagePlus rendered = new TrajectoryRenderer(spots, TrajectoryRenderer.TRAJECTORIES, 1, TAIL).render(base);
+		if (path.toLowerCase().endsWith(".avi")) {
+			new AVI_Writer().writeImage(rendered, path, AVI_Writer.JPEG_COMPRESSION, 90);
 		}
-	}
-	
-	// STPE T2. Draw direction arrows
-	private void drawDirections(Overlay overlay, ArrayList<Spot> spots[], int radius) {
-		int nt = spots.length;
-		for (int t = 0; t < nt; t++) {
-			// print the time point
-			//System.out.println("overlaying time point: " + (t+1));
-			for (Spot spot : spots[t]) {
-				// call the draw function in the Spot class
-				spot.drawDirections(overlay, radius);
-			}
+		else {
+			IJ.saveAsTiff(rendered, path);
 		}
 	}
 
 	// STEP D3. DoG filter
 	private ImagePlus dog(ImagePlus imp, double sigma1, double sigma2) {
 		//System.out.println("Step D2. DoG filtering...");
-		ImagePlus g1 = imp.duplicate();
-		ImagePlus g2 = imp.duplicate();
-		if (sigma1 != 0) {
-			IJ.run(g1, "Gaussian Blur...", "sigma=" + sigma1 + " stack");
-		}
-		IJ.run(g2, "Gaussian Blur...", "sigma=" + (Math.sqrt(2) * sigma2) + " stack");
-		ImagePlus dog = ImageCalculator.run(g1, g2, "Subtract create stack");
-		dog.show();
+		// both scales in one pass over each frame, the result is a single 32-bit stack
+		DogFilter filter = new DogFilter(sigma1, Math.sqrt(2) * sigma2, true);
+		ImagePlus dog = filter.filter(imp, parallelism);
+		if (headless == false) {
+			dog.show();
+		}
 		return dog;
 	}
 
 	// STEP D6a. Center of mass detection
+	// the stack is binarized at once, then the particles of every frame are analyzed in parallel
 	public Spots[] thresDetect(ImagePlus imp, int nt, int xmax, int ymax) {
-		RoiManager rm = new RoiManager();
-		int options = Measurements.CENTER_OF_MASS;
 		ImagePlus imp_bn = imp.duplicate();
 		IJ.run(imp_bn, "Make Binary", "method=Default background=Default calculate black");
 		//IJ.run(imp_bn, "Watershed", "stack");
 		//IJ.run(imp_bn, "Analyze Particles...", "size=7-Infinity show=Masks clear stack");
 		//IJ.run(imp_bn, "Options...", "iterations=1 count=1 black do=Skeletonize stack");
-		IJ.run(imp_bn, "Analyze Particles...", "size=3-Infinity display clear overlay add stack");
-		rm.runCommand(imp_bn, "Show None");
+		ImageStack stack = imp_bn.getStack();
+		Calibration cal = imp_bn.getCalibration();
 		Spots spots[] = new Spots[nt];
-		Roi[] roiArray = rm.getRoisAsArray();
-//		int num_roi = roiArray.length;
-//		if (num_roi >= 200*nt) {
-//			System.out.println("Too many particles ("+num_roi/nt+"/frame) detected. Try the 'Noisy data' option.");
-//			System.exit(1);
-//		}
-//		else {
-//			IJ.log("Particles ("+num_roi/nt+"/frame) are detected.");
-//		}
-		int count = 1;
-		int dcount = 0;
-		int lframe = -1;
-		for (Roi roi : roiArray) {
-			int cd = count/2000;
-			if (cd>dcount) {
-				dcount++;
-				IJ.log("Detected rois: " + count);
-			}
-			int frame = roi.getPosition() - 1;
-			if (frame >= lframe) {
-				lframe++;
-				spots[frame] = new Spots();
+		FrameParallel.run(nt, parallelism, t -> {
+			ImageProcessor ip = stack.getProcessor(imp_bn.getStackIndex(1, 1, t + 1));
+			spots[t] = detectParticles(ip, t, cal);
+		});
+		int count = 0;
+		for (Spots frame : spots) {
+			count += frame.size();
+		}
+		IJ.log("Detected rois: " + count);
+		return spots;
+	}
+
+	// STEP D6a. One spot at the center of mass of every particle (>= 3 units^2) of a binary frame
+	public Spots detectParticles(ImageProcessor binary, int t, Calibration cal) {
+		// "size=3-Infinity" is given in calibrated units
+		double minSize = 3 / (cal.pixelWidth * cal.pixelHeight);
+		// 8-connected particles as "Analyze Particles", a frame is labeled by a single thread
+		ConnectedComponents cc = ConnectedComponents.label(binary, 8, 1);
+		Spots spots = new Spots();
+		for (int l = 1; l <= cc.getCount(); l++) {
+			if (cc.getArea(l) < minSize) {
+				continue;
 			}
-			imp_bn.setRoi(roi);
-			int x = (int) Math.round(imp_bn.getStatistics(options).xCenterOfMass);
-			int y = (int) Math.round(imp_bn.getStatistics(options).yCenterOfMass);
-			//IJ.log("Adding: " + x +", " + y + ", " + frame);
-			spots[frame].add(new Spot(x, y, frame));
-			count++;
+			// XM and YM of the particle, in calibrated units of the pixel centers
+			double[] c = cc.getCentroid(l);
+			double xm = cal.getX(c[0] + 0.5);
+			double ym = cal.getY(c[1] + 0.5, binary.getHeight());
+			int x = (int) Math.round(xm);
+			int y = (int) Math.round(ym);
+			//IJ.log("Adding: " + x +", " + y + ", " + t);
+			Spot spot = spotTable.add(x, y, t);
+			// the center of mass is kept as the sub-pixel position
+			spotTable.setSubPixel(spot.getId(), (float)xm, (float)ym);
+			spots.add(spot);
 		}
 		return spots;
 	}
 
 	// Step D6b. LocalMax
-	private ArrayList<Spot>[] localMaxfilter(ImagePlus imp, ArrayList<Spot> spots[], double threstime) {
+	// keep the maxima above threstime times the std of their frame, the frames are filtered in parallel
+	public Spots[] localMaxfilter(ImagePlus imp, Spots spots[], double threstime) {
 		int nt = spots.length;
-		int count = 1;
-		int dcount = 0;
-		ArrayList<Spot> out[] = new Spots[nt];
-		for (int t = 0; t < nt; t++) {
+		ImageStack stack = imp.getStack();
+		Calibration cal = imp.getCalibration();
+		Spots out[] = new Spots[nt];
+		FrameParallel.run(nt, parallelism, t -> {
 			out[t] = new Spots();
 			// set threshold to be 2 times std of the image
-			imp.setPosition(1, 1, t + 1);
-			double threshold = threstime*imp.getStatistics().stdDev;
+			ImageProcessor ip = stack.getProcessor(imp.getStackIndex(1, 1, t + 1));
+			double threshold = threstime*ImageStatistics.getStatistics(ip, Measurements.STD_DEV, cal).stdDev;
 			for (Spot spot : spots[t]) {
-				double value = imp.getProcessor().getPixelValue(spot.x, spot.y);
+				double value = ip.getPixelValue(spot.x, spot.y);
 				if (value > threshold) {
 					// set a threshold for spotting
-					int cd = count/2000;
-					if (cd>dcount) {
-						dcount++;
-						IJ.log("Detected rois: " + count);	
-					}
-					count++;
-					if (count >= 200*nt) {
-						System.out.println("Too many particles ("+count/nt+"/frame) detected. Check your input.");
-						System.exit(1);
-					}
+					spot.setIntensity((float)value);
 					out[t].add(spot);
 				}
 			}
+		});
+		int count = 1;
+		for (Spots frame : out) {
+			count += frame.size();
+		}
+		IJ.log("Detected rois: " + (count - 1));
+		if (count >= 200*nt) {
+			// fail this movie only, a batch goes on with the next one
+			throw new IllegalStateException("Too many particles ("+count/nt+"/frame) detected. Check your input.");
 		}
 		return out;
 	}
 		
+	// local maxima in a (2*bd+1)^2 window, the pixel must be the only maximum of its window
+	// the window max is a separable running max filter on the pixel array of the frame (see MaxFilter)
+	// the frames are read from the stack (the position of imp is not changed) and detected in parallel
 	public Spots[] localMax(ImagePlus imp, int bd) {
 		int nt = imp.getNFrames();
 		int nx = imp.getWidth();
-		int ny = imp.getHeight();
+		ImageStack stack = imp.getStack();
 		Spots spots[] = new Spots[nt];
-		for (int t = 0; t < nt; t++) {
-			imp.setPosition(1, 1, t + 1);
-			ImageProcessor ip = imp.getProcessor();
+		FrameParallel.run(nt, parallelism, t -> {
+			ImageProcessor ip = stack.getProcessor(imp.getStackIndex(1, 1, t + 1));
 			spots[t] = new Spots();
-			// loop over the pixels
-			for (int x = 1; x < nx - 1; x++) {
-				for (int y = 1; y < ny - 1; y++) {
-					double v = ip.getPixelValue(x, y);
-					double max = -1;
-					for (int k = -bd; k <= bd; k++) {
-						for (int l = -bd; l <= bd; l++) {
-							max = Math.max(max, ip.getPixelValue(x + k, y + l));
-						}
-					}
-					// count the number of max pixels, if larger then 1, do not generate spot
-					int count = 0;
-					for (int k = -bd; k <= bd; k++) {
-						for (int l = -bd; l <= bd; l++) {
-							if (ip.getPixelValue(x+k, y+l) == max)
-								count ++;
-						}
-					}
-					// if the pixel is the "only" maximum in the neighborhood, add it to the list
-					if (v == max && count < 2) {
-						// skip it if not the only largest!
-						spots[t].add(new Spot(x, y, t));
-					}
-				}
+			for (int index : MaxFilter.localMaxima(ip, bd, true)) {
+				spots[t].add(spotTable.add(index % nx, index / nx, t));
 			}
-		}
+		});
 		// return a list of spots
 		return spots;
 	}
 	
+	// STEP D6c. Sub-pixel localisation: a 2D Gaussian is fitted on the 7x7 window of every spot
+	// (GaussianFit), the position, amplitude and sigma are stored in the table, the pixel is kept
+	// if the fit fails. The spots of all the frames are fitted in parallel, by blocks of spots.
+	// Returns the number of spots fitted
+	public int refineSpots(PixelSource pixels, Spots[] spots) {
+		int count = 0;
+		for (Spots frame : spots) {
+			count += frame.size();
+		}
+		int[] all = new int[count];
+		int k = 0;
+		for (Spots frame : spots) {
+			for (int i = 0; i < frame.size(); i++) {
+				all[k++] = frame.getId(i);
+			}
+		}
+		GaussianFit fitter = new GaussianFit(FIT_RADIUS, FIT_SIGMA);
+		int blocks = (all.length + FIT_BLOCK - 1) / FIT_BLOCK;
+		int[] fitted = new int[blocks];
+		FrameParallel.run(blocks, parallelism, b -> {
+			double[] result = new double[5];
+			for (int i = b * FIT_BLOCK; i < Math.min(all.length, (b + 1) * FIT_BLOCK); i++) {
+				int id = all[i];
+				if (fitter.fit(pixels, spotTable.getT(id), spotTable.getX(id), spotTable.getY(id), result)) {
+					spotTable.setFit(id, (float)result[0], (float)result[1], (float)result[2], (float)result[3]);
+					fitted[b]++;
+				}
+			}
+		});
+		int n = 0;
+		for (int f : fitted) {
+			n += f;
+		}
+		return n;
+	}
+	
 	// compute the max of the image
 	public double findMax(ImagePlus imp, int nt) {
 		double fmax = 0;
@@ -474,41 +588,246 @@ public class TirfTracking implements Command {
 	}
 	
 	// STEP D7. Preparation of the orentation map
-	// convolution using a [0,0,0,0,0,0,3,3,4,4,5] filter on time axis
+	// convolution using a [0,0,0,0,0,0,3,3,4,4,5] filter on time axis, directly on the time series of the pixels
+	// the map is inverted and scaled to 8-bit with the range of the whole stack
+	// the stack is filtered twice band by band (range, then scaling), the 8-bit map is the only copy of the stack
 	public ImagePlus foreseeDirection(ImagePlus imp) {
-		ImagePlus future = imp.duplicate();
-		IJ.run(future, "Reslice [/]...", "output=1.000 start=Top avoid");
-		IJ.run(future, "Convolve...", "text1=0\n0\n0\n0\n0\n0\n3\n3\n4\n4\n5\n normalize stack");
-		IJ.run(future, "Reslice [/]...", "output=1.000 start=Top avoid");
-		IJ.run(future, "Invert", "stack");
-		IJ.run(future, "8-bit", "");
+		ImageStack stack = imp.getStack();
+		int nt = stack.getSize();
+		int size = imp.getWidth() * imp.getHeight();
+		TemporalFilter filter = new TemporalFilter(TemporalFilter.FUTURE, true);
+		// STEP D7a. Range of the filtered stack
+		float[] range = {Float.MAX_VALUE, -Float.MAX_VALUE};
+		filter.filter(stack, parallelism, (t, from, to, values) -> {
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for (int i = 0; i < to - from; i++) {
+				min = Math.min(min, values[i]);
+				max = Math.max(max, values[i]);
+			}
+			synchronized (range) {
+				range[0] = Math.min(range[0], min);
+				range[1] = Math.max(range[1], max);
+			}
+		});
+		float scale = (range[1] > range[0]) ? (range[1] - range[0]) : 1;
+		float high = range[1];
+		// STEP D7b. Filter again and scale into the 8-bit slices
+		ImageStack out = new ImageStack(imp.getWidth(), imp.getHeight(), nt);
+		for (int t = 0; t < nt; t++) {
+			out.setPixels(new byte[size], t + 1);
+		}
+		filter.filter(stack, parallelism, (t, from, to, values) -> {
+			byte[] pixels = (byte[])out.getPixels(t + 1);
+			for (int i = from; i < to; i++) {
+				pixels[i] = (byte)Math.round(255 * (high - values[i - from]) / scale);
+			}
+		});
+		ImagePlus future = new ImagePlus("Future of " + imp.getTitle(), out);
+		future.setCalibration(imp.getCalibration());
 		return future;
 	}
 	
-	// STEP L1. Estimate local density and give a good long_link
-	public double estimateLocalDens(Spot current, ArrayList<Spot>[] spots, int t, int ts, int xmax, int ymax, boolean diffuse) {
+	// LINKING. Link the spots frame by frame with a global one-to-one assignment
+	public void linkSpots(Spots[] spots, ImagePlus imp, ImagePlus imp_future, double lambda, double gamma, boolean diffuse) {
+		int nt = spots.length;
+		int xmax = imp.getWidth();
+		int ymax = imp.getHeight();
+		// cost function
+		double f1max = findMax(imp, nt);
+		//IJ.log("f1max "+f1max);
+		double f2max = findMax(imp_future, nt);
+		//IJ.log("f2max "+f2max);
+		double dmax = Math.sqrt(xmax*xmax + ymax*ymax);
+		//IJ.log("dmax "+dmax);
+		LinkCost cost = linkCost(lambda, gamma, dmax, f1max, f2max);
+		
+		// STEP L0. Features of every spot, read once from imp and the orientation map
+		measureFeatures(new StackPixels(imp), new StackPixels(imp_future), spots);
+		// STEP L0. Index the spots in a bucket grid per frame for the radius queries,
+		// only the grids of the frames t ... t+5 read by linkFrame(t) are kept
+		int cellSize = densityBound(diffuse);
+		SpotGrid[] grids = new SpotGrid[nt];
+		for (int t = 0; t < nt - 1; t++) {
+			for (int d = t; d < Math.min(nt, t + 6); d++) {
+				if (grids[d] == null) {
+					grids[d] = buildGrid(spots[d], cellSize);
+				}
+			}
+			linkFrame(spots, grids, t, cost, diffuse, xmax, ymax);
+			grids[t] = null;
+		}
+	}
+	
+	// STEP L3. The cost function: (1-lambda-gamma)*dist/dmax + lambda*intdiff/f1max + gamma*dirvalue/f2max
+	// intdiff is the difference of the values of the frames at the two spots, dirvalue the value of
+	// the orientation map at the candidate
+	public LinkCost linkCost(double lambda, double gamma, double dmax, double f1max, double f2max) {
+		return new LinkCost()
+				.add(1 - lambda - gamma, LinkCost.distance(dmax))
+				.add(lambda, LinkCost.difference(LinkCost.INTENSITY, f1max))
+				.add(gamma, LinkCost.value(LinkCost.ORIENTATION, f2max));
+	}
+	
+	// STEP L0. Features of the link cost: the value of frame t at a spot of frame t (intensity term)
+	// and the value of the orientation map of frame t-1 at a spot of frame t (orientation term,
+	// the map of t-1 foresees the frames t ... t+4). The frames are measured in parallel
+	public void measureFeatures(PixelSource pixels, PixelSource orientation, Spots[] spots) {
+		FrameParallel.run(spots.length, parallelism, t -> {
+			for (Spot spot : spots[t]) {
+				SpotTable table = spot.getTable();
+				table.setSignal(spot.getId(), pixels.getValue(t, spot.x, spot.y));
+				if (t > 0) {
+					table.setOrientation(spot.getId(), orientation.getValue(t-1, spot.x, spot.y));
+				}
+			}
+		});
+	}
+	
+	// LINKING. Link the spots of frame t to the spots of frames t+1 ... t+5
+	// only the frames t ... t+5 of spots and grids are read, the cost only reads the features of the spots
+	public void linkFrame(Spots[] spots, SpotGrid[] grids, int t, LinkCost cost, boolean diffuse, int xmax, int ymax) {
+		int nt = spots.length;
 		double long_link;
-		int ccount = 0;
-		int ncount = 0;
-		int bound;
+		// a link is only worth it if it is cheaper than ending one track and starting another one
+		double alt_cost = 0.5 * 1.05 * MAX_LINK_COST;
+		int nts = Math.min(nt-t, 6);
+		// compact column index of the candidates of frames t+1 ... t+5, -1 if not a candidate
+		int[][] colid = new int[nts][];
+		int maxsize = spots[t].size();
+		for (int ts = 1; ts < nts; ts++) {
+			colid[ts] = new int[spots[t+ts].size()];
+			java.util.Arrays.fill(colid[ts], -1);
+			maxsize = Math.max(maxsize, spots[t+ts].size());
+		}
+		SpotTable table = spots[t].getTable();
+		int[] candidates = new int[maxsize];
+		// gated candidates of a spot: index in their frame and id in the table, and their costs
+		int[] gated = new int[maxsize];
+		int[] ids = new int[maxsize];
+		double[] costs = new double[maxsize];
+		// ids of the columns of the assignment
+		int[] targets = new int[16];
+		int ntargets = 0;
+		// gated pairs of this frame, one row per current spot
+		SparseAssignment lap = new SparseAssignment(spots[t].size());
+		for (int indc = 0; indc < spots[t].size(); indc++) {
+			Spot current = spots[t].get(indc);
+			boolean findspot = false;
+			// find candidates in next "few frames"
+			for (int ts = 1; ts < nts; ts++) {
+				// STEP L1. Estimate the local density of spots and compute a good long_link
+				long_link = estimateLocalDens(current, spots, grids, t, ts, xmax, ymax, diffuse, candidates);
+				//System.out.println(long_link);
+				// only the spots of the grid cells around the disk of radius long_link are visited
+				// (the grid holds the pixels, the distance is measured between the sub-pixel positions)
+				int ncand = grids[t+ts].queryRadius(current.x, current.y, long_link + 1, candidates);
+				int m = 0;
+				for (int k = 0; k < ncand; k++) {
+					int indn = candidates[k];
+					int next = spots[t+ts].getId(indn);
+					// skip the spots already claimed by a track of an earlier frame
+					double dx = current.getSubX() - table.getSubX(next);
+					double dy = current.getSubY() - table.getSubY(next);
+					if (Math.sqrt(dx * dx + dy * dy) > long_link || table.getNext(next) >= 0) {
+						continue;
+					}
+					gated[m] = indn;
+					ids[m] = next;
+					m++;
+				}
+				// STEP L2-L3. Costs of all the gated candidates at once, from the features of the spots
+				cost.evaluate(table, current.getId(), ids, m, costs);
+				// keep the candidates below the maximal cost
+				for (int k = 0; k < m; k++) {
+					int indn = gated[k];
+					if (costs[k] <= MAX_LINK_COST) {
+						if (colid[ts][indn] < 0) {
+							if (ntargets == targets.length) {
+								targets = java.util.Arrays.copyOf(targets, 2 * ntargets);
+							}
+							colid[ts][indn] = ntargets;
+							targets[ntargets++] = ids[k];
+						}
+						lap.add(indc, colid[ts][indn], costs[k]);
+						findspot = true;
+					}
+				}
+				if (findspot == true) {
+					break;
+				}
+			}
+		}
+		// STEP L4. Solve the assignment of the frame and form the links
+		int[] assignment = lap.solve(alt_cost, alt_cost);
+		for (int i = 0; i < assignment.length; i++) {
+			if (assignment[i] >= 0) {
+				// current.link(good_next) of Spot
+				table.link(spots[t].getId(i), targets[assignment[i]]);
+			}
+		}
+	}
+	
+	// STEP L0. Build one bucket grid per frame, cells are as large as the density window
+	public SpotGrid[] buildGrids(Spots[] spots, int cellSize) {
+		int nt = spots.length;
+		SpotGrid[] grids = new SpotGrid[nt];
+		for (int t = 0; t < nt; t++) {
+			grids[t] = buildGrid(spots[t], cellSize);
+		}
+		return grids;
+	}
+	
+	public SpotGrid buildGrid(Spots frame, int cellSize) {
+		int n = (frame == null) ? 0 : frame.size();
+		int[] xs = new int[n];
+		int[] ys = new int[n];
+		for (int i = 0; i < n; i++) {
+			int id = frame.getId(i);
+			xs[i] = frame.getTable().getX(id);
+			ys[i] = frame.getTable().getY(id);
+		}
+		return new SpotGrid(xs, ys, n, cellSize);
+	}
+	
+	// half width of the window used to estimate the local density
+	public int densityBound(boolean diffuse) {
 		if (diffuse == true) {
-			bound = 8;
+			return 8;
 		}
 		else {
-			bound = 4;
+			return 4;
 		}
+	}
+	
+	// STEP L1. Estimate local density and give a good long_link
+	// only the spots of the grid cells overlapping the window are tested
+	public double estimateLocalDens(Spot current, Spots[] spots, SpotGrid[] grids, int t, int ts, int xmax, int ymax, boolean diffuse, int[] buffer) {
+		double long_link;
+		int ccount = 0;
+		int ncount = 0;
+		int bound = densityBound(diffuse);
+		SpotTable table = current.getTable();
 		int cx = current.x;
 		int cy = current.y;
-		for (Spot spot: spots[t]) {
-			if (spot.x >= cx - bound && spot.x <= cx + bound && spot.y >= cy - bound && spot.y <= cy + bound
-                    && spot.x >= 0 && spot.x <= xmax && spot.y >= 0 && spot.y <= ymax
-                    && spot.x != cx && spot.y != cy) {
+		int n = grids[t].queryBox(cx - bound, cy - bound, cx + bound, cy + bound, buffer);
+		for (int k = 0; k < n; k++) {
+			int id = spots[t].getId(buffer[k]);
+			int sx = table.getX(id);
+			int sy = table.getY(id);
+			if (sx >= cx - bound && sx <= cx + bound && sy >= cy - bound && sy <= cy + bound
+                    && sx >= 0 && sx <= xmax && sy >= 0 && sy <= ymax
+                    && sx != cx && sy != cy) {
                 ccount++;
             }
 		}
-		for (Spot spot: spots[t+ts]) {
-			if (spot.x >= cx - bound && spot.x <= cx + bound && spot.y >= cy - bound && spot.y <= cy + bound
-                    && spot.x >= 0 && spot.x <= xmax && spot.y >= 0 && spot.y <= ymax) {
+		n = grids[t+ts].queryBox(cx - bound, cy - bound, cx + bound, cy + bound, buffer);
+		for (int k = 0; k < n; k++) {
+			int id = spots[t+ts].getId(buffer[k]);
+			int sx = table.getX(id);
+			int sy = table.getY(id);
+			if (sx >= cx - bound && sx <= cx + bound && sy >= cy - bound && sy <= cy + bound
+                    && sx >= 0 && sx <= xmax && sy >= 0 && sy <= ymax) {
                 ncount++;
             }
 		}
@@ -527,57 +846,19 @@ public class TirfTracking implements Command {
 		return long_link;
 	}
 	
-
-	
-	// STEP L2. Find the intensity term for specific pixel
-	public double findIntdiff(ImagePlus imp, int t, Spot current, Spot next) {
-		imp.setSlice(t+1);
-		ImageProcessor pimp1 = imp.getProcessor();
-		double v1 = pimp1.getPixelValue(current.x, current.y);
-		//IJ.log("intdiff v1 "+v1);
-		imp.setSlice(t+2);
-		ImageProcessor pimp2 = imp.getProcessor();
-		double v2 = pimp2.getPixelValue(next.x, next.y);
-		//IJ.log("intdiff v2 "+v2);
-		double intdiff = Math.abs(v1-v2);
-		return intdiff;
-	}
-	
-	// STEP L2. Find the orientation term for specific pixel
-	public double findDirValue(ImagePlus future, int t, Spot next) {
-		future.setSlice(t+1);
-		//IJ.log("DirValue x y: "+ next.x + next.y);
-		ImageProcessor pimp = future.getProcessor();
-		double value = pimp.getPixelValue(next.x, next.y);
-		return value;
-	}
-
-	// STEP L3. Compute the cost function
-	public double getCOST(Spot current, Spot next, double dmax, double f1max, double lambda, double intdiff, double f2max, double gamma, double dirvalue) {
-		//IJ.log("intdiff "+intdiff+" dirvalue "+dirvalue);
-		double cost;
-		double dist = current.distance(next);
-		// do something
-		cost = (double)(1-lambda-gamma)*(dist/dmax) + lambda*(intdiff)/(f1max) + gamma*(dirvalue)/(f2max);
-		return cost;
-	}
-	
-	// STEP T1. Recursively track the trajectory starting from specific points
-	// Use recursion to go through all current points with next point.
+	// STEP T1. Track the trajectory starting from specific points
+	// Go through all current points with next point.
 	// Add coordinates into ArrayOfOne.
 	public ArrayList<int[]> findNext(Spot P, ArrayList<int[]> ArrayOfOne) {
-	    int[] coordinates = { P.x, P.y, P.t };
-	    ArrayOfOne.add(coordinates);
-	    P.track = true;
-
-	    if (P.next == null) {
-	        return ArrayOfOne;
-	    } 
-	    else {
-	        ArrayOfOne = findNext(P.next, ArrayOfOne);
-	    }
-
-	    return ArrayOfOne;
+		// the track is followed in the columns of the table, no recursion (long tracks)
+		SpotTable table = P.getTable();
+		for (int id = P.getId(); id >= 0; id = table.getNext(id)) {
+			// the id gives the sub-pixel position of the spot (TrajectoryAnalysis)
+			int[] coordinates = { table.getX(id), table.getY(id), table.getT(id), id };
+			ArrayOfOne.add(coordinates);
+			table.setTracked(id, true);
+		}
+		return ArrayOfOne;
 	}
 	
 	// STEP T2. Compute diffusion parameter
@@ -588,55 +869,49 @@ public class TirfTracking implements Command {
 		double[] diffusionCoefficients = new double[spotNumber];
 		
 		for(int i = 0; i<spotNumber; i++) {
+			diffusionCoefficients[i] = diffusionCoefficient(spotlist.get(i));
+		}
+		
+        IJ.log("Average diffusion coefficient is: " + average(diffusionCoefficients));
+		
+		return diffusionCoefficients;
+	}
+	
+	// STEP T2. Diffusion coefficient of one trajectory
+	public double diffusionCoefficient(ArrayList<int[]> trajectory) {
+		int min_t = Integer.MAX_VALUE;
+		int max_t = -1;
+		
+		int x_1=0;
+		int x_2=0;
+		int y_1=0;
+		int y_2=0;
+		
+		double mse_distance = 0;
+		
+		for(int[] spotsnapshot : trajectory) {
 			
-			int min_t = Integer.MAX_VALUE;
-			int max_t = -1;
-			
-			int x_1=0;
-			int x_2=0;
-			int y_1=0;
-			int y_2=0;
-			
-			double mse_distance = 0;
-			
-			for(int[] spotsnapshot : spotlist.get(i)) {
-				
-				//find the first and last occurence of the same spot
-				if(spotsnapshot[2]<min_t) {
-					min_t=spotsnapshot[2];
-					x_1=spotsnapshot[0];
-					y_1=spotsnapshot[1];
-				} if(spotsnapshot[2]>max_t) {
-					max_t=spotsnapshot[2];
-					x_2=spotsnapshot[0];
-					y_2=spotsnapshot[1];
-				}
-			}
-			
-			//calculate distance between start and the end
-			mse_distance = Math.pow(x_1-x_2, 2) + Math.pow(y_1-y_2, 2);
-			
-			//calculate diffusion coefficient: d=4Dt
-			if(max_t-min_t==0) {
-				diffusionCoefficients[i]=0;
-				continue;
+			//find the first and last occurence of the same spot
+			if(spotsnapshot[2]<min_t) {
+				min_t=spotsnapshot[2];
+				x_1=spotsnapshot[0];
+				y_1=spotsnapshot[1];
+			} if(spotsnapshot[2]>max_t) {
+				max_t=spotsnapshot[2];
+				x_2=spotsnapshot[0];
+				y_2=spotsnapshot[1];
 			}
-			
-			diffusionCoefficients[i] = mse_distance/(4*(max_t-min_t));
 		}
 		
+		//calculate distance between start and the end
+		mse_distance = (x_1-x_2)*(x_1-x_2) + (y_1-y_2)*(y_1-y_2);
 		
-		double avg=0;
-		
-		for (int i = 0; i < diffusionCoefficients.length; i++) {
-            avg += diffusionCoefficients[i];
-        }
- 
-        double average = avg / diffusionCoefficients.length;
-        
-        IJ.log("Average diffusion coefficient is: " + average);
+		//calculate diffusion coefficient: d=4Dt
+		if(max_t-min_t==0) {
+			return 0;
+		}
 		
-		return diffusionCoefficients;
+		return mse_distance/(4*(max_t-min_t));
 	}
 	
 	// STEP T2. Compute speed parameter
@@ -646,50 +921,64 @@ public class TirfTracking implements Command {
 		double[] speeds = new double[spotNumber];
 		
 		for(int i = 0; i<spotNumber; i++) {
+			speeds[i] = speed(spotlist.get(i));
+		}
+		
+        IJ.log("Average speed is: " + average(speeds));
+		
+		return speeds;
+	}
+	
+	// STEP T2. Speed of one trajectory
+	public double speed(ArrayList<int[]> trajectory) {
+		int min_t = Integer.MAX_VALUE;
+		int max_t = -1;
+		
+		double distance = 0;
+		
+		for(int j=1; j<trajectory.size(); j++) {
 			
-			int min_t = Integer.MAX_VALUE;
-			int max_t = -1;
-			
-			double distance = 0;
-			
-			for(int j=1; j<spotlist.get(i).size(); j++) {
-				
-				 int[] spotsnapshot = spotlist.get(i).get(j);
-				 int[] previoussnapshot = spotlist.get(i).get(j-1);
-				
-				if(spotsnapshot[2]<min_t) {
-					min_t=spotsnapshot[2];
-				} if(spotsnapshot[2]>max_t) {
-					max_t=spotsnapshot[2];
-				}
-				
-				//calculates the distance advanced between the previous spot and this one
-				//keeps adding
-				distance += Math.sqrt(Math.pow(spotsnapshot[0]-previoussnapshot[0], 2) 
-									+ Math.pow(spotsnapshot[1]-previoussnapshot[1], 2));
-			}
+			 int[] spotsnapshot = trajectory.get(j);
+			 int[] previoussnapshot = trajectory.get(j-1);
 			
-			if(max_t-min_t==0) {
-				//In case there is a single data for the spot
-				speeds[i]=0;
-				continue;
+			if(spotsnapshot[2]<min_t) {
+				min_t=spotsnapshot[2];
+			} if(spotsnapshot[2]>max_t) {
+				max_t=spotsnapshot[2];
 			}
 			
-			//linear speed is total distance divided by total time
-			speeds[i] = distance/(max_t-min_t);
+			//calculates the distance advanced between the previous spot and this one
+			//keeps adding
+			int dx = spotsnapshot[0]-previoussnapshot[0];
+			int dy = spotsnapshot[1]-previoussnapshot[1];
+			distance += Math.sqrt(dx*dx + dy*dy);
+		}
+		
+		if(max_t-min_t==0) {
+			//In case there is a single data for the spot
+			return 0;
 		}
 		
+		//linear speed is total distance divided by total time
+		return distance/(max_t-min_t);
+	}
+	
+	private static double average(double[] values) {
 		double avg=0;
 		
-		for (int i = 0; i < speeds.length; i++) {
-            avg += speeds[i];
+		for (int i = 0; i < values.length; i++) {
+            avg += values[i];
         }
  
-        double average = avg / speeds.length;
-        
-        IJ.log("Average speed is: " + average);
-		
-		return speeds;
+        return avg / values.length;
+	}
+	
+	private static double[] toArray(ArrayList<Double> values) {
+		double[] out = new double[values.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = values.get(i);
+		}
+		return out;
 	}
 	
 	// STEP T5. Compute direction vector
@@ -699,8 +988,8 @@ public class TirfTracking implements Command {
 		
 		Spot last=spot;
 		
-		while(last.next != null) {
-			last = last.next;
+		while(last.getNext() != null) {
+			last = last.getNext();
 		}
 		
 		int x_2 = last.x;
@@ -710,9 +999,9 @@ public class TirfTracking implements Command {
 		
 		if(distance<5) return;
 		
-		while(spot.next != null) {
-			spot.direction = new int[] {x_1-x_2, y_1-y_2};
-			spot = spot.next;
+		while(spot.getNext() != null) {
+			spot.setDirection(x_1-x_2, y_1-y_2);
+			spot = spot.getNext();
 		}
 	}
 	
@@ -724,45 +1013,17 @@ public class TirfTracking implements Command {
 		p.show();
 	}
 	
-	// STEP T3. Save trajectory coordinates and parameters in csv file
-	//col1: spot number, col2: x, col3: y, col4: t
+	// STEP T3. Save trajectory coordinates and parameters in csv file (csvName in folder)
+	//col1: spot number, col2: x, col3: y, col4: t, col5: speed, col6: diffusion coefficient
 	public void saveCoordinates(ArrayList<ArrayList<int[]>> spotlist, double[] speeds, double[] diffusionCoeffs, String folder) throws IOException {
-		String filename = folder + "\\Spots.csv";
-		File csvFile = new File(filename);
-		System.out.println(csvFile.getAbsolutePath());
-		FileWriter writer = new FileWriter(csvFile);
-		
-		int spotnumber = 0;
-		
-		for (ArrayList<int[]> spot : spotlist) {
-			
-			++spotnumber;
-			
-			for(int[] spotsnapshot : spot) {
-				
-				StringBuilder line = new StringBuilder();
-				
-				if(spotsnapshot.length < 3) continue;
-				
-				line.append(String.valueOf(spotnumber));
-				line.append(',');
-			    
-			    for (int i = 0; i < spotsnapshot.length; i++) {
-			    	
-			        line.append(String.valueOf(spotsnapshot[i]));
-			        line.append(',');
-			    }
-			    
-		        line.append(String.valueOf(speeds[spotnumber]));
-		        line.append(',');
-		        line.append(String.valueOf(diffusionCoeffs[spotnumber]));
-			    line.append("\n");
-			    
-			    writer.write(line.toString());
+		Path csv = Paths.get(folder, csvName);
+		IJ.log("Saving the data in " + csv.toAbsolutePath() + "...");
+		try (TrajectoryWriter writer = new TrajectoryWriter(csv)) {
+			int spotnumber = 0;
+			for (ArrayList<int[]> spot : spotlist) {
+				writer.writeTrack(spotnumber+1, spot, speeds[spotnumber], diffusionCoeffs[spotnumber]);
+				spotnumber++;
 			}
-			
 		}
-		
-		writer.close();
 	}
 }
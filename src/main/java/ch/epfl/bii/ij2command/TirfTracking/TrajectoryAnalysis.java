@@ -0,0 +1,373 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Mean squared displacement (MSD) analysis of every trajectory.
+ *
+ *  The MSD of a track is computed for all the time lags (in frames), from all the
+ *  pairs of points of the track: MSD(lag) = mean |r(t+lag) - r(t)|^2. The tracks
+ *  can skip frames (links up to t+5), so the pairs are grouped by their time
+ *  difference and not by their index in the track. Short tracks are computed
+ *  pair by pair; long tracks (FFT_POINTS points or more) with FFT correlations of
+ *  the positions and of the mask of the frames of the track, in O(n log n).
+ *
+ *  Per track:
+ *  - diffusion: D of MSD = 4 D lag + offset, fitted on the first FIT_LAGS lags,
+ *  - alpha: anomalous exponent of MSD ~ lag^alpha, fitted in log-log on the first
+ *    quarter of the lags (at least FIT_LAGS), 1 for free diffusion, < 1 confined,
+ *  - speed: length of the path / duration,
+ *  - gyration: radius of gyration of the points, the size of the confinement area,
+ *  - straightness: end to end distance / length of the path (1 for a straight line).
+ *  Units are pixels and frames, NaN when a value is not defined (too short track).
+ *
+ *  The positions are the sub-pixel positions of the spots (SpotTable, fitted by
+ *  TirfTracking.refineSpots) when the points carry the id of their spot {x, y, t, id}
+ *  and the table is given, the pixels {x, y} otherwise: the rounding of the pixels
+ *  adds about 1/6 pixel^2 to every MSD and biases D and alpha.
+ *
+ *  The tracks are copied into primitive arrays and analysed in parallel.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.epfl.bii.ij2command.Utils.FFT;
+import ch.epfl.bii.ij2command.Utils.FrameParallel;
+
+public class TrajectoryAnalysis {
+	public static final String HEADER = "track,points,duration,speed,diffusion,alpha,gyration,straightness";
+	// lags of the fit of D
+	public static final int FIT_LAGS = 4;
+	// tracks with at least FFT_POINTS points use the FFT
+	static final int FFT_POINTS = 64;
+
+	private final int count;
+	// points of every track, sorted by t: track k is [offsets[k], offsets[k+1])
+	private final int[] offsets;
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] ts;
+	// MSD and number of pairs of every lag (lag 0 included): track k is [msdOffsets[k], msdOffsets[k+1])
+	private final long[] msdOffsets;
+	private final double[] msd;
+	private final int[] pairs;
+	private final int[] duration;
+	private final double[] speed;
+	private final double[] diffusion;
+	private final double[] alpha;
+	private final double[] gyration;
+	private final double[] straightness;
+
+	private TrajectoryAnalysis(ArrayList<ArrayList<int[]>> tracks, SpotTable table) {
+		count = tracks.size();
+		offsets = new int[count + 1];
+		for (int k = 0; k < count; k++) {
+			int n = 0;
+			for (int[] point : tracks.get(k)) {
+				if (point.length >= 3) {
+					n++;
+				}
+			}
+			offsets[k + 1] = offsets[k] + n;
+		}
+		xs = new double[offsets[count]];
+		ys = new double[offsets[count]];
+		ts = new int[offsets[count]];
+		msdOffsets = new long[count + 1];
+		for (int k = 0; k < count; k++) {
+			int i = offsets[k];
+			int tmin = Integer.MAX_VALUE;
+			int tmax = Integer.MIN_VALUE;
+			for (int[] point : tracks.get(k)) {
+				if (point.length >= 3) {
+					boolean sub = (table != null && point.length >= 4);
+					xs[i] = sub ? table.getSubX(point[3]) : point[0];
+					ys[i] = sub ? table.getSubY(point[3]) : point[1];
+					ts[i] = point[2];
+					tmin = Math.min(tmin, point[2]);
+					tmax = Math.max(tmax, point[2]);
+					i++;
+				}
+			}
+			sortByTime(offsets[k], offsets[k + 1]);
+			int span = (offsets[k + 1] > offsets[k]) ? tmax - tmin + 1 : 0;
+			msdOffsets[k + 1] = msdOffsets[k] + span;
+		}
+		if (msdOffsets[count] > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The tracks are too long for one analysis");
+		}
+		msd = new double[(int)msdOffsets[count]];
+		pairs = new int[msd.length];
+		duration = new int[count];
+		speed = new double[count];
+		diffusion = new double[count];
+		alpha = new double[count];
+		gyration = new double[count];
+		straightness = new double[count];
+	}
+
+	// MSD curves and parameters of every track (the points are {x, y, t}), on the pixels
+	public static TrajectoryAnalysis analyze(ArrayList<ArrayList<int[]>> tracks, int parallelism) {
+		return analyze(tracks, null, parallelism);
+	}
+
+	// same on the sub-pixel positions of table for the points {x, y, t, id}
+	public static TrajectoryAnalysis analyze(ArrayList<ArrayList<int[]>> tracks, SpotTable table, int parallelism) {
+		TrajectoryAnalysis analysis = new TrajectoryAnalysis(tracks, table);
+		// blocks of tracks, many per thread to balance short and long tracks
+		int n = analysis.count;
+		int nblocks = Math.max(1, Math.min(n, 64 * Math.max(1, parallelism)));
+		FrameParallel.run(nblocks, parallelism, b -> {
+			for (int k = (int)((long)n * b / nblocks); k < (int)((long)n * (b + 1) / nblocks); k++) {
+				analysis.analyze(k);
+			}
+		});
+		return analysis;
+	}
+
+	// the tracks are given in the order of the links, usually already sorted
+	private void sortByTime(int from, int to) {
+		for (int i = from + 1; i < to; i++) {
+			double x = xs[i];
+			double y = ys[i];
+			int t = ts[i];
+			int j = i - 1;
+			while (j >= from && ts[j] > t) {
+				xs[j + 1] = xs[j];
+				ys[j + 1] = ys[j];
+				ts[j + 1] = ts[j];
+				j--;
+			}
+			xs[j + 1] = x;
+			ys[j + 1] = y;
+			ts[j + 1] = t;
+		}
+	}
+
+	private void analyze(int k) {
+		int from = offsets[k];
+		int to = offsets[k + 1];
+		int m0 = (int)msdOffsets[k];
+		int span = (int)(msdOffsets[k + 1] - msdOffsets[k]);
+		if (to - from < 1) {
+			speed[k] = diffusion[k] = alpha[k] = gyration[k] = straightness[k] = Double.NaN;
+			return;
+		}
+		duration[k] = span - 1;
+		// STEP 1. MSD of every lag
+		if (to - from >= FFT_POINTS) {
+			msdFFT(from, to, m0, span);
+		}
+		else {
+			msdDirect(from, to, m0);
+		}
+		msd[m0] = 0;
+		pairs[m0] = to - from;
+		for (int lag = 1; lag < span; lag++) {
+			int c = pairs[m0 + lag];
+			msd[m0 + lag] = (c > 0) ? msd[m0 + lag] / c : Double.NaN;
+		}
+		// STEP 2. Path, gyration and straightness
+		double path = 0;
+		double cx = 0;
+		double cy = 0;
+		for (int i = from; i < to; i++) {
+			cx += xs[i];
+			cy += ys[i];
+			if (i > from) {
+				double dx = xs[i] - xs[i - 1];
+				double dy = ys[i] - ys[i - 1];
+				path += Math.sqrt(dx * dx + dy * dy);
+			}
+		}
+		cx /= (to - from);
+		cy /= (to - from);
+		double rg = 0;
+		for (int i = from; i < to; i++) {
+			double dx = xs[i] - cx;
+			double dy = ys[i] - cy;
+			rg += dx * dx + dy * dy;
+		}
+		gyration[k] = Math.sqrt(rg / (to - from));
+		double ex = xs[to - 1] - xs[from];
+		double ey = ys[to - 1] - ys[from];
+		straightness[k] = (path > 0) ? Math.sqrt(ex * ex + ey * ey) / path : Double.NaN;
+		speed[k] = (duration[k] > 0) ? path / duration[k] : 0;
+		// STEP 3. Fits of the first lags
+		diffusion[k] = fitDiffusion(m0, span);
+		alpha[k] = fitAlpha(m0, span);
+	}
+
+	// sum of the squared displacements and number of pairs of every lag, pair by pair
+	private void msdDirect(int from, int to, int m0) {
+		for (int i = from; i < to; i++) {
+			for (int j = i + 1; j < to; j++) {
+				double dx = xs[j] - xs[i];
+				double dy = ys[j] - ys[i];
+				int lag = ts[j] - ts[i];
+				msd[m0 + lag] += dx * dx + dy * dy;
+				pairs[m0 + lag]++;
+			}
+		}
+	}
+
+	// same with FFT correlations, w(t) = 1 in the frames of the track (0 elsewhere), r = (x, y):
+	// sum_t w(t) w(t+lag) |r(t+lag) - r(t)|^2 = corr(w, q) + corr(q, w) - 2 corr(r, r), q = w |r|^2
+	private void msdFFT(int from, int to, int m0, int span) {
+		int size = FFT.size(2 * span);
+		int t0 = ts[from];
+		// positions relative to the first point (better precision of the sums)
+		double[] zr = new double[size];
+		double[] zi = new double[size];
+		double[] ur = new double[size];
+		double[] ui = new double[size];
+		for (int i = from; i < to; i++) {
+			int t = ts[i] - t0;
+			double x = xs[i] - xs[from];
+			double y = ys[i] - ys[from];
+			zr[t] = x;
+			zi[t] = y;
+			ur[t] = 1;
+			ui[t] = x * x + y * y;
+		}
+		// z = x + iy gives corr(x, x) + corr(y, y), u = w + iq gives the spectra of w and q
+		FFT.transform(zr, zi, false);
+		FFT.transform(ur, ui, false);
+		double[] re = new double[size];
+		double[] im = new double[size];
+		for (int f = 0; f < size; f++) {
+			int g = (size - f) & (size - 1);
+			// W = (U(f) + conj(U(-f))) / 2, Q = (U(f) - conj(U(-f))) / 2i
+			double wr = (ur[f] + ur[g]) / 2;
+			double wi = (ui[f] - ui[g]) / 2;
+			double qr = (ui[f] + ui[g]) / 2;
+			double qi = (ur[g] - ur[f]) / 2;
+			// |X|^2 + |Y|^2, the cross term of |Z|^2 is odd in f
+			double zz = (zr[f] * zr[f] + zi[f] * zi[f] + zr[g] * zr[g] + zi[g] * zi[g]) / 2;
+			// both spectra are of real signals: one inverse transform for both
+			re[f] = 2 * (wr * qr + wi * qi) - 2 * zz;
+			im[f] = wr * wr + wi * wi;
+		}
+		FFT.transform(re, im, true);
+		for (int lag = 0; lag < span; lag++) {
+			int c = (int)Math.round(im[lag]);
+			pairs[m0 + lag] = c;
+			msd[m0 + lag] = (c > 0) ? Math.max(0, re[lag]) : 0;
+		}
+	}
+
+	// slope / 4 of the least squares line of the MSD of lags 1 ... FIT_LAGS
+	private double fitDiffusion(int m0, int span) {
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		int n = 0;
+		for (int lag = 1; lag <= Math.min(FIT_LAGS, span - 1); lag++) {
+			double v = msd[m0 + lag];
+			if (Double.isNaN(v)) {
+				continue;
+			}
+			sx += lag;
+			sy += v;
+			sxx += lag * lag;
+			sxy += lag * v;
+			n++;
+		}
+		if (n == 0) {
+			return Double.NaN;
+		}
+		if (n == 1) {
+			// a single lag: through the origin
+			return sy / (4 * sx);
+		}
+		return (n * sxy - sx * sy) / (n * sxx - sx * sx) / 4;
+	}
+
+	// slope of log(MSD) against log(lag)
+	private double fitAlpha(int m0, int span) {
+		int last = Math.min(span - 1, Math.max(FIT_LAGS, (span - 1) / 4));
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		int n = 0;
+		for (int lag = 1; lag <= last; lag++) {
+			double v = msd[m0 + lag];
+			if (Double.isNaN(v) || v <= 0) {
+				continue;
+			}
+			double lx = Math.log(lag);
+			double ly = Math.log(v);
+			sx += lx;
+			sy += ly;
+			sxx += lx * lx;
+			sxy += lx * ly;
+			n++;
+		}
+		if (n < 2) {
+			return Double.NaN;
+		}
+		return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	// MSD of track k for the lags 0 ... duration, NaN for a lag without pairs
+	public double[] getMsd(int k) {
+		return Arrays.copyOfRange(msd, (int)msdOffsets[k], (int)msdOffsets[k + 1]);
+	}
+
+	// number of pairs of points of track k separated by every lag
+	public int[] getPairs(int k) {
+		return Arrays.copyOfRange(pairs, (int)msdOffsets[k], (int)msdOffsets[k + 1]);
+	}
+
+	public int getPoints(int k) {
+		return offsets[k + 1] - offsets[k];
+	}
+
+	public int[] getDuration() {
+		return duration;
+	}
+
+	public double[] getSpeed() {
+		return speed;
+	}
+
+	public double[] getDiffusion() {
+		return diffusion;
+	}
+
+	public double[] getAlpha() {
+		return alpha;
+	}
+
+	public double[] getGyration() {
+		return gyration;
+	}
+
+	public double[] getStraightness() {
+		return straightness;
+	}
+
+	// values that are not NaN (means, histograms)
+	public static double[] defined(double[] values) {
+		return Arrays.stream(values).filter(v -> !Double.isNaN(v)).toArray();
+	}
+
+	// one row per track, the tracks are numbered from 1 as in the spots csv
+	public void save(Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (int k = 0; k < count; k++) {
+				writer.write((k + 1) + "," + getPoints(k) + "," + duration[k] + "," + speed[k] + "," + diffusion[k] + ","
+						+ alpha[k] + "," + gyration[k] + "," + straightness[k]);
+				writer.newLine();
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  Display of the trajectories (or of the direction arrows) on a stack.
+ *
+ *  The spots are already indexed by frame (one list per frame), so the overlay
+ *  only holds the ROIs of the frame being shown: the circles of the spots of the
+ *  frame and the links of the last "tail" frames. The overlay is rebuilt when the
+ *  frame of the image changes (ImageListener), instead of one overlay with a ROI
+ *  for every spot and link of the movie that ImageJ repaints at every frame.
+ *
+ *  render() draws the same elements directly into an RGB copy of the frames,
+ *  without ROI objects (except the arrow heads), for an AVI or TIFF export.
+ */
+
+import java.awt.Color;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Arrow;
+import ij.gui.Overlay;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+public class TrajectoryRenderer implements ImageListener {
+	public static final int TRAJECTORIES = 0;
+	public static final int DIRECTIONS = 1;
+
+	private final Spots[] spots;
+	private final int mode;
+	private final int radius;
+	private final int tail;
+	private ImagePlus imp = null;
+	private int shown = -1;
+
+	// tail: number of previous frames whose links are drawn (trajectories only)
+	public TrajectoryRenderer(Spots[] spots, int mode, int radius, int tail) {
+		this.spots = spots;
+		this.mode = mode;
+		this.radius = radius;
+		this.tail = Math.max(0, tail);
+	}
+
+	// follow the frame of imp until it is closed
+	public void attach(ImagePlus imp) {
+		this.imp = imp;
+		ImagePlus.addImageListener(this);
+		update();
+	}
+
+	// ROIs of frame n (zero-based)
+	// a link is stored on its later spot (Spot.link), so the links of the spots of frames
+	// n-tail ... n end at or before frame n: no link to a later frame is drawn
+	public Overlay overlay(int n) {
+		Overlay overlay = new Overlay();
+		if (n < 0 || n >= spots.length) {
+			return overlay;
+		}
+		if (mode == DIRECTIONS) {
+			for (Spot spot : spots[n]) {
+				spot.drawDirections(overlay, radius);
+			}
+			return overlay;
+		}
+		for (int k = Math.max(0, n - tail); k <= n; k++) {
+			for (Spot spot : spots[k]) {
+				spot.drawLink(overlay);
+			}
+		}
+		for (Spot spot : spots[n]) {
+			spot.draw(overlay, radius);
+		}
+		return overlay;
+	}
+
+	// RGB copy of the frames of base (with its display range) with the elements drawn in the pixels
+	public ImagePlus render(ImagePlus base) {
+		ImageStack stack = base.getStack();
+		int nt = Math.min(stack.getSize(), spots.length);
+		ImageStack out = new ImageStack(base.getWidth(), base.getHeight());
+		for (int n = 0; n < nt; n++) {
+			ImageProcessor ip = stack.getProcessor(n + 1);
+			ip.setMinAndMax(base.getDisplayRangeMin(), base.getDisplayRangeMax());
+			ColorProcessor cp = (ColorProcessor)ip.convertToRGB();
+			draw(cp, n);
+			out.addSlice(stack.getSliceLabel(n + 1), cp);
+		}
+		ImagePlus rendered = new ImagePlus("Trajectories of " + base.getTitle(), out);
+		rendered.setCalibration(base.getCalibration());
+		return rendered;
+	}
+
+	// same elements as overlay(n)
+	private void draw(ColorProcessor cp, int n) {
+		if (mode == DIRECTIONS) {
+			cp.setColor(Color.white);
+			for (Spot spot : spots[n]) {
+				drawCircle(cp, spot);
+				int dx = spot.getTable().getDx(spot.getId());
+				int dy = spot.getTable().getDy(spot.getId());
+				if (dx != 0 && dy != 0) {
+					Arrow arrow = new Arrow(spot.x, spot.y, spot.x + dx, spot.y + dy);
+					arrow.setStrokeColor(Color.white);
+					arrow.setHeadSize(2);
+					arrow.drawPixels(cp);
+				}
+			}
+			return;
+		}
+		for (int k = Math.max(0, n - tail); k <= n; k++) {
+			for (Spot spot : spots[k]) {
+				Spot next = spot.getNext();
+				if (next != null) {
+					cp.setColor(spot.getTable().getColor(spot.getId()));
+					cp.drawLine(spot.x, spot.y, next.x, next.y);
+				}
+			}
+		}
+		cp.setColor(Color.yellow);
+		for (Spot spot : spots[n]) {
+			drawCircle(cp, spot);
+		}
+	}
+
+	private void drawCircle(ImageProcessor ip, Spot spot) {
+		int x0 = (int)Math.round(spot.x + 0.5 - radius);
+		int y0 = (int)Math.round(spot.y + 0.5 - radius);
+		ip.drawOval(x0, y0, 2 * radius, 2 * radius);
+	}
+
+	private void update() {
+		int n = (imp.getNFrames() > 1) ? imp.getFrame() - 1 : imp.getCurrentSlice() - 1;
+		if (n != shown) {
+			shown = n;
+			imp.setOverlay(overlay(n));
+		}
+	}
+
+	@Override
+	public void imageUpdated(ImagePlus source) {
+		if (source == imp) {
+			update();
+		}
+	}
+
+	@Override
+	public void imageClosed(ImagePlus source) {
+		if (source == imp) {
+			ImagePlus.removeImageListener(this);
+			imp = null;
+		}
+	}
+
+	@Override
+	public void imageOpened(ImagePlus source) {
+	}
+}
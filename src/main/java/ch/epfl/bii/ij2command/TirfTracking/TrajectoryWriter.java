@@ -0,0 +1,148 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+/*
+ *  BIO-410 Bioimage Informatics Miniproject - TIRF protein tracking
+ *
+ *  CSV export of the trajectories, one row per spot: track,x,y,t,speed,diffusion
+ *
+ *  The rows are formatted directly into a large byte buffer (no String per row)
+ *  that is written to a FileChannel when full, so a track can be written as soon
+ *  as it is traced. A file name ending with ".gz" is gzip-compressed on the fly.
+ *  The numbers are written as String.valueOf() writes them.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+public class TrajectoryWriter implements Closeable {
+	public static final String HEADER = "track,x,y,t,speed,diffusion";
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	// null for a plain file, the buffer is then written to the channel
+	private final OutputStream gzip;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final byte[] digits = new byte[11];
+	private int position = 0;
+	private long rows = 0;
+
+	public TrajectoryWriter(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		OutputStream out = null;
+		try {
+			if (path.getFileName().toString().toLowerCase().endsWith(".gz")) {
+				out = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16);
+			}
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		gzip = out;
+		write(HEADER.getBytes(StandardCharsets.US_ASCII));
+		write((byte)'\n');
+	}
+
+	// rows of one track, the points are {x, y, t} (more values of a point are ignored)
+	public void writeTrack(int track, ArrayList<int[]> points, double speed, double diffusion) throws IOException {
+		// the same two last columns on every row of the track
+		byte[] tail = (',' + String.valueOf(speed) + ',' + String.valueOf(diffusion) + '\n').getBytes(StandardCharsets.US_ASCII);
+		for (int[] point : points) {
+			if (point.length < 3) {
+				continue;
+			}
+			writeInt(track);
+			write((byte)',');
+			writeInt(point[0]);
+			write((byte)',');
+			writeInt(point[1]);
+			write((byte)',');
+			writeInt(point[2]);
+			write(tail);
+			rows++;
+		}
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	private void writeInt(int v) throws IOException {
+		if (position + digits.length + 1 > buffer.length) {
+			flush();
+		}
+		if (v == Integer.MIN_VALUE) {
+			write(String.valueOf(v).getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		if (v < 0) {
+			buffer[position++] = '-';
+			v = -v;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte)('0' + v % 10);
+			v /= 10;
+		} while (v > 0);
+		while (n > 0) {
+			buffer[position++] = digits[--n];
+		}
+	}
+
+	private void write(byte b) throws IOException {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = b;
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		if (position + bytes.length > buffer.length) {
+			flush();
+		}
+		if (bytes.length > buffer.length) {
+			writeOut(bytes, bytes.length);
+			return;
+		}
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void flush() throws IOException {
+		writeOut(buffer, position);
+		position = 0;
+	}
+
+	private void writeOut(byte[] bytes, int length) throws IOException {
+		if (gzip != null) {
+			gzip.write(bytes, 0, length);
+			return;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(bytes, 0, length);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			if (gzip != null) {
+				gzip.close();
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.Arrays;
+
+/*
+ *  Mean intensity in a band around every labeled object, without ROIs.
+ *
+ *  For every label of a ConnectedComponents labeling (one per object per slice),
+ *  the region is the object with everything it encloses (the traced outline of
+ *  Analyze Particles), and the band the pixels outside the region at a distance
+ *  of at most "band" pixels (rounded Euclidean distance, as the byte EDM of
+ *  "Make Band..."), with the holes of region+band filled as the wand does.
+ *  The band is a dilation by a disk, computed in a small window around the
+ *  object, so the bands of neighbors can overlap as the ROIs of Make Band do.
+ *  The values of the band pixels are summed in the same pass (NaN skipped).
+ *
+ *  The area and centroid of every region are kept, and the regions can be written
+ *  into a label image (to follow the objects from frame to frame, RegionTracker).
+ *
+ *  The slices are processed in parallel, each one only writes the entries of
+ *  its own labels.
+ */
+
+public class BandMeasurement {
+	private final double[] sum;
+	private final long[] count;
+	private final int[] frame;
+	private final long[] regionArea;
+	private final double[] regionX;
+	private final double[] regionY;
+
+	private BandMeasurement(int labels) {
+		sum = new double[labels + 1];
+		count = new long[labels + 1];
+		frame = new int[labels + 1];
+		regionArea = new long[labels + 1];
+		regionX = new double[labels + 1];
+		regionY = new double[labels + 1];
+	}
+
+	// band of every label with an area of at least minArea, values of slice z read as values.getValue(z, x, y)
+	public static BandMeasurement measure(ConnectedComponents cc, PixelSource values, int band, long minArea, int parallelism) {
+		return measure(cc, values, band, minArea, null, parallelism);
+	}
+
+	// same, the label of every measured region is also written in regions (same layout as cc.getLabels()),
+	// the labels of a slice are written in increasing order, so a region enclosed in another one (measured
+	// after it) keeps its own pixels
+	public static BandMeasurement measure(ConnectedComponents cc, PixelSource values, int band, long minArea, int[] regions, int parallelism) {
+		int n = cc.getCount();
+		BandMeasurement bm = new BandMeasurement(n);
+		// labels follow the order of their first pixel, so the labels of a slice are consecutive
+		int depth = cc.getDepth();
+		int[] first = new int[depth + 1];
+		for (int l = 1; l <= n; l++) {
+			bm.frame[l] = cc.getBounds(l)[2];
+		}
+		int l = 1;
+		for (int z = 0; z <= depth; z++) {
+			while (l <= n && bm.frame[l] < z) {
+				l++;
+			}
+			first[z] = l;
+		}
+		int[] disk = disk(band);
+		FrameParallel.run(depth, parallelism, z -> {
+			Window window = new Window();
+			for (int label = first[z]; label < first[z + 1]; label++) {
+				bm.count[label] = -1;
+				if (cc.getArea(label) >= minArea) {
+					window.measure(cc, label, band, disk, values, regions, bm);
+				}
+			}
+		});
+		return bm;
+	}
+
+	// offsets {dx, dy} of the disk of radius band + 0.5 (rounded distance <= band)
+	private static int[] disk(int band) {
+		int[] offsets = new int[2 * (2 * band + 1) * (2 * band + 1)];
+		int k = 0;
+		for (int dy = -band; dy <= band; dy++) {
+			for (int dx = -band; dx <= band; dx++) {
+				if (dx * dx + dy * dy <= band * band + band) {
+					offsets[k++] = dx;
+					offsets[k++] = dy;
+				}
+			}
+		}
+		return Arrays.copyOf(offsets, k);
+	}
+
+	// scratch of one thread: the states of the pixels of the window around one object
+	private static class Window {
+		private static final byte OUTSIDE = 0;
+		private static final byte OBJECT = 1;
+		private static final byte BAND = 2;
+		private static final byte REACHED = 3;
+		private byte[] state = new byte[0];
+		private int[] queue = new int[0];
+
+		void measure(ConnectedComponents cc, int label, int band, int[] disk, PixelSource values, int[] regions, BandMeasurement bm) {
+			int width = cc.getWidth();
+			int height = cc.getHeight();
+			int[] labels = cc.getLabels();
+			int[] b = cc.getBounds(label);
+			int z = b[2];
+			// window: bounds + band + 1, the border row of the window is always outside
+			int x0 = b[0] - band - 1;
+			int y0 = b[1] - band - 1;
+			int ww = b[3] - b[0] + 1 + 2 * (band + 1);
+			int wh = b[4] - b[1] + 1 + 2 * (band + 1);
+			int size = ww * wh;
+			if (state.length < size) {
+				state = new byte[size];
+				queue = new int[size];
+			}
+			Arrays.fill(state, 0, size, OUTSIDE);
+			int offset = z * width * height;
+			for (int y = b[1]; y <= b[4]; y++) {
+				for (int x = b[0]; x <= b[3]; x++) {
+					if (labels[offset + y * width + x] == label) {
+						state[(y - y0) * ww + (x - x0)] = OBJECT;
+					}
+				}
+			}
+			// STEP 1. Region: the object and what it encloses (not reached from the border)
+			fill(ww, wh, OUTSIDE, OBJECT);
+			// the region never touches the border of the window (band + 1 pixels)
+			long area = 0;
+			double sx = 0;
+			double sy = 0;
+			for (int y = 1; y < wh - 1; y++) {
+				for (int x = 1; x < ww - 1; x++) {
+					if (state[y * ww + x] == OBJECT) {
+						area++;
+						sx += x + x0;
+						sy += y + y0;
+						if (regions != null) {
+							regions[offset + (y + y0) * width + (x + x0)] = label;
+						}
+					}
+				}
+			}
+			bm.regionArea[label] = area;
+			bm.regionX[label] = sx / area;
+			bm.regionY[label] = sy / area;
+			// STEP 2. Band: dilation of the region by the disk
+			for (int y = 1; y < wh - 1; y++) {
+				for (int x = 1; x < ww - 1; x++) {
+					if (state[y * ww + x] != OBJECT) {
+						continue;
+					}
+					for (int k = 0; k < disk.length; k += 2) {
+						int i = (y + disk[k + 1]) * ww + (x + disk[k]);
+						if (state[i] == OUTSIDE) {
+							state[i] = BAND;
+						}
+					}
+				}
+			}
+			// STEP 3. Holes of region+band belong to the band
+			fill(ww, wh, OUTSIDE, BAND);
+			// STEP 4. Sum of the values of the band pixels in the image
+			double s = 0;
+			long c = 0;
+			for (int y = Math.max(0, y0); y < Math.min(height, y0 + wh); y++) {
+				for (int x = Math.max(0, x0); x < Math.min(width, x0 + ww); x++) {
+					if (state[(y - y0) * ww + (x - x0)] == BAND) {
+						float v = values.getValue(z, x, y);
+						if (Float.isNaN(v) == false) {
+							s += v;
+							c++;
+						}
+					}
+				}
+			}
+			bm.sum[label] = s;
+			bm.count[label] = c;
+		}
+
+		// the pixels "from" 4-connected to the border of the window become REACHED,
+		// then the pixels still "from" become "to" and the REACHED pixels "from" again
+		private void fill(int ww, int wh, byte from, byte to) {
+			int head = 0;
+			int tail = 0;
+			for (int x = 0; x < ww; x++) {
+				tail = push(x, from, tail);
+				tail = push((wh - 1) * ww + x, from, tail);
+			}
+			for (int y = 1; y < wh - 1; y++) {
+				tail = push(y * ww, from, tail);
+				tail = push(y * ww + ww - 1, from, tail);
+			}
+			while (head < tail) {
+				int i = queue[head++];
+				int x = i % ww;
+				int y = i / ww;
+				if (x > 0) {
+					tail = push(i - 1, from, tail);
+				}
+				if (x < ww - 1) {
+					tail = push(i + 1, from, tail);
+				}
+				if (y > 0) {
+					tail = push(i - ww, from, tail);
+				}
+				if (y < wh - 1) {
+					tail = push(i + ww, from, tail);
+				}
+			}
+			for (int i = 0; i < ww * wh; i++) {
+				if (state[i] == from) {
+					state[i] = to;
+				}
+				else if (state[i] == REACHED) {
+					state[i] = from;
+				}
+			}
+		}
+
+		private int push(int i, byte from, int tail) {
+			if (state[i] == from) {
+				state[i] = REACHED;
+				queue[tail++] = i;
+			}
+			return tail;
+		}
+	}
+
+	// slice (zero-based) of the label
+	public int getFrame(int label) {
+		return frame[label];
+	}
+
+	// number of band pixels of the label, -1 if it was not measured (area below minArea)
+	public long getCount(int label) {
+		return count[label];
+	}
+
+	public double getSum(int label) {
+		return sum[label];
+	}
+
+	// area of the region (object and what it encloses), 0 if it was not measured
+	public long getRegionArea(int label) {
+		return regionArea[label];
+	}
+
+	// centroid {x, y} of the region in pixel indices (add 0.5 for the center of the pixels)
+	public double[] getRegionCentroid(int label) {
+		return new double[] {regionX[label], regionY[label]};
+	}
+
+	// mean of the band, NaN if it was not measured or is empty
+	public double getMean(int label) {
+		return (count[label] > 0) ? sum[label] / count[label] : Double.NaN;
+	}
+}
@@ -0,0 +1,246 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+
+/*
+ *  Outlines of the objects of every frame: automatic threshold, Close, Fill Holes,
+ *  Dilate and Outline of "Process>Binary" in one pass over each frame, without
+ *  IJ.run (no macro, no undo snapshot, headless).
+ *
+ *  The steps work on byte masks (0/1) and are streamed by rows: the thresholded
+ *  rows are produced one row ahead of the dilation, itself one row ahead of the
+ *  erosion, so the close only keeps rings of 3 rows. Fill Holes needs the whole
+ *  frame (4-connected flood from the border), then the last dilation and the
+ *  outline are streamed again into the output frame. The scratch buffers belong
+ *  to the thread, a frame only allocates its output.
+ *
+ *  The result matches the ImageJ commands with "iterations=1 count=1 black":
+ *  - "Make Binary" (calculate, dark background) of a frame: the frame is scaled
+ *    to 8-bit between its min and max (convertToByte), and the objects are the
+ *    pixels above the threshold of the method (AutoThresholder) on its histogram,
+ *  - Erode/Dilate: 3x3 neighbors, the pixels outside of the image are background,
+ *  - Outline: the object pixels with a background pixel in their 3x3 neighbors,
+ *    so the objects touching the border are closed along the border.
+ */
+
+public class BinaryMorphology {
+	private final AutoThresholder.Method method;
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>();
+
+	public BinaryMorphology(AutoThresholder.Method method) {
+		this.method = method;
+	}
+
+	// outlines (255 on 0) of every frame of imp, the frames are processed in parallel into one 8-bit stack
+	public ImagePlus outlines(ImagePlus imp, int parallelism) {
+		ImageStack stack = imp.getStack();
+		int nx = stack.getWidth();
+		int ny = stack.getHeight();
+		ImageStack out = new ImageStack(nx, ny, stack.getSize());
+		byte[][] frames = new byte[stack.getSize()][];
+		FrameParallel.run(stack.getSize(), parallelism, n -> {
+			frames[n] = new byte[nx * ny];
+			outlines(DogFilter.toRaw(stack.getPixels(n + 1)), nx, ny, frames[n]);
+		});
+		for (int n = 0; n < frames.length; n++) {
+			out.setPixels(frames[n], n + 1);
+			out.setSliceLabel(stack.getSliceLabel(n + 1), n + 1);
+		}
+		ImagePlus mask = new ImagePlus("Mask of " + imp.getTitle(), out);
+		mask.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		mask.setCalibration(imp.getCalibration());
+		return mask;
+	}
+
+	// outlines of one frame of raw values into out (255 on 0)
+	public void outlines(float[] in, int nx, int ny, byte[] out) {
+		Buffers b = buffers.get();
+		if (b == null || b.mask.length < nx * ny || b.t[0].length < nx) {
+			b = new Buffers(nx, ny);
+			buffers.set(b);
+		}
+		byte[][] t = b.t;
+		byte[][] d = b.d;
+		byte[] mask = b.mask;
+		// STEP 1. Threshold of the 8-bit histogram
+		float[] range = range(in, nx * ny);
+		float min = range[0];
+		double scale = 255.0 / ((double)range[1] - range[0]);
+		int[] histogram = b.histogram;
+		for (int i = 0; i < 256; i++) {
+			histogram[i] = 0;
+		}
+		byte[] bytes = b.bytes;
+		for (int i = 0; i < nx * ny; i++) {
+			int v = toByte(in[i], min, scale);
+			bytes[i] = (byte)v;
+			histogram[v]++;
+		}
+		int lower = Math.min(new AutoThresholder().getThreshold(method, histogram) + 1, 255);
+		// STEP 2. Close: threshold -> dilate -> erode, streamed by rows into the mask
+		for (int y = 0; y < ny + 2; y++) {
+			if (y < ny) {
+				byte[] row = t[y % 3];
+				for (int x = 0, i = y * nx; x < nx; x++, i++) {
+					row[x] = (byte)(((bytes[i] & 0xff) >= lower) ? 1 : 0);
+				}
+			}
+			int yd = y - 1;
+			if (yd >= 0 && yd < ny) {
+				dilate(ring(t, yd - 1, ny), 0, t[yd % 3], 0, ring(t, yd + 1, ny), 0, nx, d[yd % 3], 0);
+			}
+			int ye = y - 2;
+			if (ye >= 0) {
+				erode(ring(d, ye - 1, ny), d[ye % 3], ring(d, ye + 1, ny), nx, mask, ye * nx);
+			}
+		}
+		// STEP 3. Fill Holes
+		fillHoles(mask, nx, ny, b.queue);
+		// STEP 4. Dilate -> Outline, streamed by rows into the output
+		for (int y = 0; y < ny + 1; y++) {
+			if (y < ny) {
+				dilate(mask, (y > 0) ? (y - 1) * nx : -1, mask, y * nx, mask, (y < ny - 1) ? (y + 1) * nx : -1, nx, d[y % 3], 0);
+			}
+			int yo = y - 1;
+			if (yo >= 0) {
+				outline(ring(d, yo - 1, ny), d[yo % 3], ring(d, yo + 1, ny), nx, out, yo * nx);
+			}
+		}
+	}
+
+	// min and max of the finite values (ImageProcessor.resetMinAndMax)
+	private static float[] range(float[] in, int size) {
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			float v = in[i];
+			if (Float.isInfinite(v) == false) {
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		}
+		return new float[] {min, max};
+	}
+
+	// 8-bit value of convertToByte(true), 0 for NaN
+	private static int toByte(float v, float min, double scale) {
+		double d = v - min;
+		if (d < 0) {
+			d = 0;
+		}
+		int b = (int)(d * scale + 0.5);
+		return (b > 255) ? 255 : b;
+	}
+
+	// row y of a ring of 3 rows, null outside of the image
+	private static byte[] ring(byte[][] rows, int y, int ny) {
+		return (y < 0 || y >= ny) ? null : rows[y % 3];
+	}
+
+	// 3x3 dilation of the row "center" (rows at an offset of -1 are outside of the image)
+	private static void dilate(byte[] up, int ou, byte[] center, int oc, byte[] down, int od, int nx, byte[] out, int oo) {
+		for (int x = 0; x < nx; x++) {
+			int xl = Math.max(0, x - 1);
+			int xr = Math.min(nx - 1, x + 1);
+			int v = center[oc + xl] | center[oc + x] | center[oc + xr];
+			if (up != null && ou >= 0) {
+				v |= up[ou + xl] | up[ou + x] | up[ou + xr];
+			}
+			if (down != null && od >= 0) {
+				v |= down[od + xl] | down[od + x] | down[od + xr];
+			}
+			out[oo + x] = (byte)v;
+		}
+	}
+
+	// 3x3 erosion of the row center, the pixels outside of the image (null rows) are background
+	private static void erode(byte[] up, byte[] center, byte[] down, int nx, byte[] out, int oo) {
+		out[oo] = 0;
+		out[oo + nx - 1] = 0;
+		if (up == null || down == null) {
+			for (int x = 0; x < nx; x++) {
+				out[oo + x] = 0;
+			}
+			return;
+		}
+		for (int x = 1; x < nx - 1; x++) {
+			out[oo + x] = (byte)(up[x - 1] & up[x] & up[x + 1] & center[x - 1] & center[x] & center[x + 1] & down[x - 1] & down[x] & down[x + 1]);
+		}
+	}
+
+	// object pixels of the row center with a background neighbor (3x3), the pixels outside of the image are background (255 on 0)
+	private static void outline(byte[] up, byte[] center, byte[] down, int nx, byte[] out, int oo) {
+		for (int x = 0; x < nx; x++) {
+			int inner = 0;
+			if (center[x] != 0 && up != null && down != null && x > 0 && x < nx - 1) {
+				inner = up[x - 1] & up[x] & up[x + 1] & center[x - 1] & center[x + 1] & down[x - 1] & down[x] & down[x + 1];
+			}
+			out[oo + x] = (byte)((center[x] != 0 && inner == 0) ? 255 : 0);
+		}
+	}
+
+	// background pixels (0) not 4-connected to the border of the frame become objects (1)
+	private static void fillHoles(byte[] mask, int nx, int ny, int[] queue) {
+		final byte reached = 2;
+		int tail = 0;
+		for (int x = 0; x < nx; x++) {
+			tail = push(mask, x, tail, queue);
+			tail = push(mask, (ny - 1) * nx + x, tail, queue);
+		}
+		for (int y = 1; y < ny - 1; y++) {
+			tail = push(mask, y * nx, tail, queue);
+			tail = push(mask, y * nx + nx - 1, tail, queue);
+		}
+		for (int head = 0; head < tail; head++) {
+			int i = queue[head];
+			int x = i % nx;
+			if (x > 0) {
+				tail = push(mask, i - 1, tail, queue);
+			}
+			if (x < nx - 1) {
+				tail = push(mask, i + 1, tail, queue);
+			}
+			if (i >= nx) {
+				tail = push(mask, i - nx, tail, queue);
+			}
+			if (i < (ny - 1) * nx) {
+				tail = push(mask, i + nx, tail, queue);
+			}
+		}
+		for (int i = 0; i < nx * ny; i++) {
+			mask[i] = (byte)((mask[i] == reached) ? 0 : 1);
+		}
+	}
+
+	private static int push(byte[] mask, int i, int tail, int[] queue) {
+		if (mask[i] == 0) {
+			mask[i] = 2;
+			queue[tail++] = i;
+		}
+		return tail;
+	}
+
+	// scratch of one thread: 8-bit frame, rings of thresholded and dilated rows, the frame mask and the flood queue
+	private static class Buffers {
+		final byte[][] t;
+		final byte[][] d;
+		final byte[] bytes;
+		final byte[] mask;
+		final int[] queue;
+		final int[] histogram = new int[256];
+
+		Buffers(int nx, int ny) {
+			t = new byte[3][nx];
+			d = new byte[3][nx];
+			bytes = new byte[nx * ny];
+			mask = new byte[nx * ny];
+			queue = new int[nx * ny];
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/*
+ *  Exponential photobleaching correction (v-C)*exp(t/tau)+C of a stack.
+ *
+ *  The gain exp(t/tau) is computed once per frame and the pixel arrays are
+ *  corrected row-major, frame by frame in parallel. The values are computed in
+ *  double and stored in float, as putPixelValue() on a 32-bit processor does, so
+ *  the result is the same as the per-pixel loop of the plugins.
+ *
+ *  In place, a 32-bit stack is corrected in its own arrays, any other stack is
+ *  replaced by a 32-bit stack (as "32-bit" then the correction). Otherwise the
+ *  input is left unchanged and a new 32-bit image is returned.
+ */
+
+public class BleachCorrector {
+	private final double tau;
+	private final double C;
+
+	public BleachCorrector(double tau, double C) {
+		this.tau = tau;
+		this.C = C;
+	}
+
+	// exp(t/tau) of frame t (zero-based)
+	public double gain(int t) {
+		return Math.exp(t/tau);
+	}
+
+	// correct the stack of imp, the frame of every slice gives its gain
+	public ImagePlus correct(ImagePlus imp, boolean inPlace, int parallelism) {
+		ImageStack stack = imp.getStack();
+		int n = stack.getSize();
+		boolean isFloat = imp.getBitDepth() == 32;
+		// 8-bit and 16-bit slices are read through the calibration table, as getPixelValue()
+		float[] ctable = isFloat ? null : imp.getCalibration().getCTable();
+		float[][] frames = new float[n][];
+		FrameParallel.run(n, parallelism, s -> {
+			int t = imp.convertIndexToPosition(s + 1)[2] - 1;
+			ImageProcessor ip = stack.getProcessor(s + 1);
+			ip.setCalibrationTable(ctable);
+			float[] in = MaxFilter.toFloat(ip);
+			frames[s] = (isFloat && inPlace) ? in : new float[in.length];
+			correct(in, t, frames[s]);
+		});
+		if (inPlace && isFloat) {
+			imp.resetDisplayRange();
+			return imp;
+		}
+		ImageStack out = new ImageStack(stack.getWidth(), stack.getHeight());
+		for (int s = 0; s < n; s++) {
+			out.addSlice(stack.getSliceLabel(s + 1), frames[s]);
+		}
+		// the corrected values are already calibrated
+		Calibration cal = imp.getCalibration().copy();
+		cal.disableDensityCalibration();
+		int nc = imp.getNChannels();
+		int nz = imp.getNSlices();
+		int nt = imp.getNFrames();
+		ImagePlus corrected = inPlace ? imp : new ImagePlus(imp.getTitle(), out);
+		if (inPlace) {
+			imp.setStack(out);
+		}
+		corrected.setDimensions(nc, nz, nt);
+		corrected.setCalibration(cal);
+		corrected.resetDisplayRange();
+		return corrected;
+	}
+
+	// correct one frame, in and out may be the same array
+	public void correct(float[] in, int t, float[] out) {
+		double g = gain(t);
+		for (int i = 0; i < in.length; i++) {
+			out[i] = (float)((in[i]-C)*g+C);
+		}
+	}
+
+	// correct a single value of frame t
+	public double correct(double v, int t) {
+		return (v-C)*gain(t)+C;
+	}
+}
@@ -0,0 +1,453 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/*
+ *  Connected component labeling of binary images and stacks. The foreground of an
+ *  ImageProcessor or ImageStack is the pixels equal to 255 (as SimpleFloodFilling
+ *  always did), the foreground of raw byte slices is every non-zero byte.
+ *
+ *  The rows of the stack (slice by slice) are cut into tiles that are labeled at the
+ *  same time with a union-find on the pixel indices. The pixels of the first rows of
+ *  a tile are then merged with their neighbors in the previous tiles, concurrently,
+ *  with a lock-free union (the larger root is linked to the smaller one with a CAS).
+ *  The root of a component is therefore its first pixel in the (z, y, x) order, and
+ *  the labels 1...count follow the order of the first pixels.
+ *
+ *  Connectivity 4 and 8 label every slice on its own (labels are unique in the stack),
+ *  6 and 26 connect the slices. The area, bounding box and centroid of every label are
+ *  computed while the labels are written.
+ */
+
+public class ConnectedComponents {
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int[] labels;
+	private int[][] neighborRows;
+	private int count;
+	// statistics indexed by label (entry 0 unused)
+	private long[] area;
+	private int[] xmin, xmax, ymin, ymax, zmin, zmax;
+	private double[] sumx, sumy, sumz;
+
+	private ConnectedComponents(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		labels = new int[width * height * depth];
+	}
+
+	// label a single frame
+	public static ConnectedComponents label(ImageProcessor mask, int connectivity, int parallelism) {
+		return label(new byte[][] {toMask(mask)}, mask.getWidth(), mask.getHeight(), connectivity, parallelism);
+	}
+
+	// label a whole stack
+	public static ConnectedComponents label(ImageStack stack, int connectivity, int parallelism) {
+		byte[][] slices = new byte[stack.getSize()][];
+		for (int z = 0; z < slices.length; z++) {
+			slices[z] = toMask(stack.getProcessor(z + 1));
+		}
+		return label(slices, stack.getWidth(), stack.getHeight(), connectivity, parallelism);
+	}
+
+	// label the slices of width*height bytes (non-zero bytes are foreground), connectivity 4, 8 (in the slices), 6 or 26 (3D)
+	public static ConnectedComponents label(byte[][] slices, int width, int height, int connectivity, int parallelism) {
+		if (connectivity != 4 && connectivity != 8 && connectivity != 6 && connectivity != 26) {
+			throw new IllegalArgumentException("Connectivity must be 4, 8, 6 or 26");
+		}
+		if ((long)width * height * slices.length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The stack has more than 2^31 pixels");
+		}
+		ConnectedComponents cc = new ConnectedComponents(width, height, slices.length);
+		cc.neighborRows = neighborRows(connectivity);
+		cc.run(slices, parallelism);
+		return cc;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	// label of every pixel, index z*width*height + y*width + x, 0 for the background
+	public int[] getLabels() {
+		return labels;
+	}
+
+	public long getArea(int label) {
+		return area[label];
+	}
+
+	// bounding box {xmin, ymin, zmin, xmax, ymax, zmax}, bounds included
+	public int[] getBounds(int label) {
+		return new int[] {xmin[label], ymin[label], zmin[label], xmax[label], ymax[label], zmax[label]};
+	}
+
+	// centroid {x, y, z} in pixel indices (add 0.5 for the center of the pixels)
+	public double[] getCentroid(int label) {
+		double n = area[label];
+		return new double[] {sumx[label] / n, sumy[label] / n, sumz[label] / n};
+	}
+
+	// label image, 16-bit up to 65535 labels and 32-bit above (exact up to 2^24 labels)
+	public ImageStack toStack() {
+		ImageStack stack = new ImageStack(width, height);
+		int size = width * height;
+		for (int z = 0; z < depth; z++) {
+			ImageProcessor ip;
+			if (count <= 65535) {
+				short[] pixels = new short[size];
+				for (int i = 0; i < size; i++) {
+					pixels[i] = (short)labels[z * size + i];
+				}
+				ip = new ShortProcessor(width, height, pixels, null);
+			}
+			else {
+				float[] pixels = new float[size];
+				for (int i = 0; i < size; i++) {
+					pixels[i] = labels[z * size + i];
+				}
+				ip = new FloatProcessor(width, height, pixels, null);
+			}
+			ip.setMinAndMax(0, Math.max(1, count));
+			stack.addSlice(ip);
+		}
+		return stack;
+	}
+
+	// pixels equal to 255, the pixels of an 8-bit binary mask (only 0 and 255) are used without copy
+	private static byte[] toMask(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[] && isBinary((byte[])pixels)) {
+			return (byte[])pixels;
+		}
+		byte[] mask = new byte[ip.getWidth() * ip.getHeight()];
+		for (int i = 0; i < mask.length; i++) {
+			mask[i] = (byte)(ip.get(i) == 255 ? 255 : 0);
+		}
+		return mask;
+	}
+
+	private static boolean isBinary(byte[] pixels) {
+		for (byte b : pixels) {
+			if (b != 0 && b != (byte)255) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// rows already visited in the (z, y, x) order that touch a pixel, as {dy, dz, diagonal}
+	private static int[][] neighborRows(int connectivity) {
+		switch (connectivity) {
+		case 4:
+			return new int[][] {{-1, 0, 0}};
+		case 8:
+			return new int[][] {{-1, 0, 1}};
+		case 6:
+			return new int[][] {{-1, 0, 0}, {0, -1, 0}};
+		default:
+			return new int[][] {{-1, 0, 1}, {-1, -1, 1}, {0, -1, 1}, {1, -1, 1}};
+		}
+	}
+
+	private void run(byte[][] slices, int parallelism) {
+		int rows = height * depth;
+		int ntiles = Math.max(1, Math.min(rows, (parallelism <= 1) ? 1 : 4 * parallelism));
+		int[] start = new int[ntiles + 1];
+		for (int k = 0; k <= ntiles; k++) {
+			start[k] = (int)((long)rows * k / ntiles);
+		}
+		// parent of the first pixel of every run (the other entries are not used)
+		AtomicIntegerArray parent = new AtomicIntegerArray(labels.length);
+
+		// STEP 1. Union of the runs of every row with the runs of the rows of the same tile
+		FrameParallel.run(ntiles, parallelism, k -> {
+			for (int r = start[k]; r < start[k + 1]; r++) {
+				linkRow(slices, parent, r, start[k], Integer.MAX_VALUE, true);
+			}
+		});
+		// STEP 2. Merge the first rows of every tile with the previous tiles
+		FrameParallel.run(ntiles, parallelism, k -> {
+			int end = Math.min(start[k + 1], start[k] + height + 1);
+			for (int r = start[k]; k > 0 && r < end; r++) {
+				linkRow(slices, parent, r, 0, start[k], false);
+			}
+		});
+		// STEP 3. Point every run to its root and count the roots of every tile
+		int[] roots = new int[ntiles + 1];
+		FrameParallel.run(ntiles, parallelism, k -> {
+			int n = 0;
+			for (int r = start[k]; r < start[k + 1]; r++) {
+				byte[] mask = slices[r / height];
+				int off = (r % height) * width;
+				for (int x = 0; x < width; x++) {
+					if (mask[off + x] == 0 || (x > 0 && mask[off + x - 1] != 0)) {
+						continue;
+					}
+					int v = r * width + x;
+					int root = find(parent, v);
+					if (root == v) {
+						n++;
+					}
+					else {
+						parent.lazySet(v, root);
+					}
+				}
+			}
+			roots[k + 1] = n;
+		});
+		for (int k = 0; k < ntiles; k++) {
+			roots[k + 1] += roots[k];
+		}
+		count = roots[ntiles];
+		area = new long[count + 1];
+		xmin = new int[count + 1];
+		ymin = new int[count + 1];
+		zmin = new int[count + 1];
+		xmax = new int[count + 1];
+		ymax = new int[count + 1];
+		zmax = new int[count + 1];
+		sumx = new double[count + 1];
+		sumy = new double[count + 1];
+		sumz = new double[count + 1];
+		Arrays.fill(xmin, Integer.MAX_VALUE);
+		Arrays.fill(ymin, Integer.MAX_VALUE);
+		Arrays.fill(zmin, Integer.MAX_VALUE);
+		Arrays.fill(xmax, -1);
+		Arrays.fill(ymax, -1);
+		Arrays.fill(zmax, -1);
+		// STEP 4. Number the roots in the order of the tiles, a root keeps -label as parent
+		FrameParallel.run(ntiles, parallelism, k -> {
+			int id = roots[k];
+			for (int r = start[k]; r < start[k + 1]; r++) {
+				byte[] mask = slices[r / height];
+				int off = (r % height) * width;
+				for (int x = 0; x < width; x++) {
+					int v = r * width + x;
+					if (mask[off + x] != 0 && (x == 0 || mask[off + x - 1] == 0) && parent.get(v) == v) {
+						parent.lazySet(v, -(++id));
+					}
+				}
+			}
+		});
+		// STEP 5. Label the runs and measure the components
+		// a tile writes the statistics of its own roots, the others are merged afterwards
+		Partial[] partials = new Partial[ntiles];
+		FrameParallel.run(ntiles, parallelism, k -> {
+			Partial partial = new Partial();
+			int first = roots[k] + 1;
+			int last = -1;
+			int slot = -1;
+			for (int r = start[k]; r < start[k + 1]; r++) {
+				int z = r / height;
+				int y = r % height;
+				byte[] mask = slices[z];
+				int off = y * width;
+				int x = 0;
+				while (x < width) {
+					if (mask[off + x] == 0) {
+						x++;
+						continue;
+					}
+					int x1 = x;
+					while (x < width && mask[off + x] != 0) {
+						x++;
+					}
+					int v = r * width + x1;
+					int p = parent.get(v);
+					int label = (p < 0) ? -p : -parent.get(p);
+					Arrays.fill(labels, v, v + x - x1, label);
+					if (label >= first) {
+						add(label, x1, x - 1, y, z);
+					}
+					else {
+						if (label != last) {
+							slot = partial.slot(label);
+							last = label;
+						}
+						partial.add(slot, x1, x - 1, y, z);
+					}
+				}
+			}
+			partials[k] = partial;
+		});
+		for (Partial partial : partials) {
+			partial.mergeInto(this);
+		}
+	}
+
+	// union of every run of row r with the runs it touches in the neighbor rows [minRow, maxRow)
+	// if init is set, the pixels of a run are first labeled with the first pixel of the run
+	private void linkRow(byte[][] slices, AtomicIntegerArray parent, int r, int minRow, int maxRow, boolean init) {
+		int z = r / height;
+		int y = r % height;
+		byte[] mask = slices[z];
+		int off = y * width;
+		int x = 0;
+		while (x < width) {
+			if (mask[off + x] == 0) {
+				x++;
+				continue;
+			}
+			int x1 = x;
+			while (x < width && mask[off + x] != 0) {
+				x++;
+			}
+			int x2 = x - 1;
+			int rep = r * width + x1;
+			if (init) {
+				Arrays.fill(labels, rep, rep + x2 - x1 + 1, rep);
+				parent.lazySet(rep, rep);
+			}
+			for (int[] n : neighborRows) {
+				int ny = y + n[0];
+				int nz = z + n[1];
+				int nr = nz * height + ny;
+				if (ny < 0 || ny >= height || nz < 0 || nr < minRow || nr >= maxRow) {
+					continue;
+				}
+				byte[] nmask = slices[nz];
+				int noff = ny * width;
+				boolean inRun = false;
+				for (int nx = Math.max(0, x1 - n[2]); nx <= Math.min(width - 1, x2 + n[2]); nx++) {
+					boolean fg = nmask[noff + nx] != 0;
+					if (fg && !inRun) {
+						union(parent, rep, labels[nr * width + nx]);
+					}
+					inRun = fg;
+				}
+			}
+		}
+	}
+
+	// pixels x1...x2 of row y in slice z
+	private void add(int label, int x1, int x2, int y, int z) {
+		int n = x2 - x1 + 1;
+		area[label] += n;
+		xmin[label] = Math.min(xmin[label], x1);
+		ymin[label] = Math.min(ymin[label], y);
+		zmin[label] = Math.min(zmin[label], z);
+		xmax[label] = Math.max(xmax[label], x2);
+		ymax[label] = Math.max(ymax[label], y);
+		zmax[label] = Math.max(zmax[label], z);
+		sumx[label] += 0.5 * (x1 + x2) * n;
+		sumy[label] += (double)y * n;
+		sumz[label] += (double)z * n;
+	}
+
+	// root of v with path halving
+	private static int find(AtomicIntegerArray parent, int v) {
+		while (true) {
+			int p = parent.get(v);
+			if (p == v) {
+				return v;
+			}
+			int gp = parent.get(p);
+			if (gp != p) {
+				// v is not a root, it can only move closer to its root
+				parent.compareAndSet(v, p, gp);
+			}
+			v = gp;
+		}
+	}
+
+	// link the larger root to the smaller one, retried if a root changed meanwhile
+	private static void union(AtomicIntegerArray parent, int a, int b) {
+		while (true) {
+			a = find(parent, a);
+			b = find(parent, b);
+			if (a == b) {
+				return;
+			}
+			if (a < b) {
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			if (parent.compareAndSet(a, a, b)) {
+				return;
+			}
+		}
+	}
+
+	// statistics of the labels whose root belongs to a previous tile
+	private static class Partial {
+		private final HashMap<Integer, Integer> slots = new HashMap<>();
+		private int n = 0;
+		private int[] label = new int[8];
+		private long[] area = new long[8];
+		private int[] bounds = new int[8 * 6];
+		private double[] sums = new double[8 * 3];
+
+		int slot(int l) {
+			Integer s = slots.get(l);
+			if (s != null) {
+				return s;
+			}
+			if (n == label.length) {
+				label = Arrays.copyOf(label, 2 * n);
+				area = Arrays.copyOf(area, 2 * n);
+				bounds = Arrays.copyOf(bounds, 2 * n * 6);
+				sums = Arrays.copyOf(sums, 2 * n * 3);
+			}
+			label[n] = l;
+			bounds[6 * n] = bounds[6 * n + 1] = bounds[6 * n + 2] = Integer.MAX_VALUE;
+			bounds[6 * n + 3] = bounds[6 * n + 4] = bounds[6 * n + 5] = -1;
+			slots.put(l, n);
+			return n++;
+		}
+
+		void add(int s, int x1, int x2, int y, int z) {
+			int n = x2 - x1 + 1;
+			area[s] += n;
+			int b = 6 * s;
+			bounds[b] = Math.min(bounds[b], x1);
+			bounds[b + 1] = Math.min(bounds[b + 1], y);
+			bounds[b + 2] = Math.min(bounds[b + 2], z);
+			bounds[b + 3] = Math.max(bounds[b + 3], x2);
+			bounds[b + 4] = Math.max(bounds[b + 4], y);
+			bounds[b + 5] = Math.max(bounds[b + 5], z);
+			sums[3 * s] += 0.5 * (x1 + x2) * n;
+			sums[3 * s + 1] += (double)y * n;
+			sums[3 * s + 2] += (double)z * n;
+		}
+
+		void mergeInto(ConnectedComponents cc) {
+			for (int s = 0; s < n; s++) {
+				int l = label[s];
+				int b = 6 * s;
+				cc.area[l] += area[s];
+				cc.xmin[l] = Math.min(cc.xmin[l], bounds[b]);
+				cc.ymin[l] = Math.min(cc.ymin[l], bounds[b + 1]);
+				cc.zmin[l] = Math.min(cc.zmin[l], bounds[b + 2]);
+				cc.xmax[l] = Math.max(cc.xmax[l], bounds[b + 3]);
+				cc.ymax[l] = Math.max(cc.ymax[l], bounds[b + 4]);
+				cc.zmax[l] = Math.max(cc.zmax[l], bounds[b + 5]);
+				cc.sumx[l] += sums[3 * s];
+				cc.sumy[l] += sums[3 * s + 1];
+				cc.sumz[l] += sums[3 * s + 2];
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+
+/*
+ *  Difference of Gaussians G(sigma1) - G(sigma2) computed frame by frame.
+ *
+ *  Both scales are computed in the same pass: every row of the frame is read once
+ *  and convolved with the two kernels, then the output rows are accumulated from
+ *  the rows of the two horizontal results and the difference is written directly
+ *  into the output frame. The scratch buffers belong to the thread, so a frame
+ *  never allocates more than its output (no duplicated stacks).
+ *
+ *  The result matches the "Gaussian Blur..." + ImageCalculator path of ImageJ:
+ *  - same kernels as GaussianBlur (accuracy 0.002 for 8-bit, 0.0002 otherwise),
+ *    with the edge pixels repeated outside of the image,
+ *  - for 8-bit and 16-bit images, the blurred frames are rounded to the image type,
+ *  - with clip, the difference is clipped to the range of the image type
+ *    ("Subtract create stack"), otherwise it is kept as is ("create 32-bit stack").
+ *  The only difference is that GaussianBlur downscales the frame for sigma > 4.5,
+ *  where this filter keeps the exact convolution. The output is always 32-bit.
+ */
+
+public class DogFilter {
+	private final double sigma1;
+	private final double sigma2;
+	private final boolean clip;
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>();
+
+	// a sigma of 0 leaves the frame unchanged
+	public DogFilter(double sigma1, double sigma2, boolean clip) {
+		this.sigma1 = sigma1;
+		this.sigma2 = sigma2;
+		this.clip = clip;
+	}
+
+	// DoG of every frame of imp, the frames are filtered in parallel into one 32-bit stack
+	public ImagePlus filter(ImagePlus imp, int parallelism) {
+		ImageStack stack = imp.getStack();
+		int nx = stack.getWidth();
+		int ny = stack.getHeight();
+		int bitDepth = imp.getBitDepth();
+		ImageStack out = new ImageStack(nx, ny, stack.getSize());
+		float[][] frames = new float[stack.getSize()][];
+		FrameParallel.run(stack.getSize(), parallelism, n -> {
+			frames[n] = new float[nx * ny];
+			filter(toRaw(stack.getPixels(n + 1)), nx, ny, bitDepth, frames[n]);
+		});
+		for (int n = 0; n < frames.length; n++) {
+			out.setPixels(frames[n], n + 1);
+			out.setSliceLabel(stack.getSliceLabel(n + 1), n + 1);
+		}
+		ImagePlus dog = new ImagePlus("DoG of " + imp.getTitle(), out);
+		dog.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		dog.setCalibration(imp.getCalibration());
+		return dog;
+	}
+
+	// DoG of one frame of raw pixel values, bitDepth gives the rounding and the clipping
+	public void filter(float[] in, int nx, int ny, int bitDepth, float[] out) {
+		Buffers b = buffers.get();
+		if (b == null || b.h1.length < nx * ny || b.line1.length < Math.max(nx, ny)) {
+			b = new Buffers(nx, ny);
+			buffers.set(b);
+		}
+		double accuracy = (bitDepth == 8) ? 0.002 : 0.0002;
+		float[][] kx1 = kernel(sigma1, accuracy, nx);
+		float[][] kx2 = kernel(sigma2, accuracy, nx);
+		float[][] ky1 = kernel(sigma1, accuracy, ny);
+		float[][] ky2 = kernel(sigma2, accuracy, ny);
+		// horizontal pass, both scales from the same row
+		for (int y = 0; y < ny; y++) {
+			int off = y * nx;
+			convolveRow(in, off, nx, kx1, b.h1);
+			convolveRow(in, off, nx, kx2, b.h2);
+		}
+		// vertical pass, the output rows are accumulated from the rows of the horizontal pass
+		float max = (bitDepth == 8) ? 255 : 65535;
+		for (int y = 0; y < ny; y++) {
+			accumulateRows(b.h1, y, nx, ny, ky1, b.line1);
+			accumulateRows(b.h2, y, nx, ny, ky2, b.line2);
+			int off = y * nx;
+			if (bitDepth == 32) {
+				for (int x = 0; x < nx; x++) {
+					out[off + x] = b.line1[x] - b.line2[x];
+				}
+			}
+			else {
+				for (int x = 0; x < nx; x++) {
+					float v = round(b.line1[x], max) - round(b.line2[x], max);
+					out[off + x] = clip ? Math.max(0, Math.min(max, v)) : v;
+				}
+			}
+		}
+	}
+
+	// raw values of a slice (no calibration table, as GaussianBlur reads them)
+	public static float[] toRaw(Object pixels) {
+		if (pixels instanceof float[]) {
+			return (float[])pixels;
+		}
+		if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			float[] out = new float[p.length];
+			for (int i = 0; i < p.length; i++) {
+				out[i] = p[i] & 0xffff;
+			}
+			return out;
+		}
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			float[] out = new float[p.length];
+			for (int i = 0; i < p.length; i++) {
+				out[i] = p[i] & 0xff;
+			}
+			return out;
+		}
+		throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit stacks are supported");
+	}
+
+	// same rounding as the conversion of a blurred frame back to 8-bit or 16-bit
+	private static float round(float v, float max) {
+		return Math.max(0, Math.min(max, (int)(v + 0.5f)));
+	}
+
+	// one-sided kernel of GaussianBlur, null for a sigma of 0
+	private static float[][] kernel(double sigma, double accuracy, int length) {
+		if (sigma <= 0) {
+			return null;
+		}
+		return new GaussianBlur().makeGaussianKernel(sigma, accuracy, length);
+	}
+
+	// convolve the row of in starting at off, the edge pixels are repeated outside of the row
+	private static void convolveRow(float[] in, int off, int n, float[][] kernel, float[] out) {
+		if (kernel == null) {
+			System.arraycopy(in, off, out, off, n);
+			return;
+		}
+		float[] k = kernel[0];
+		int r = k.length;
+		for (int x = 0; x < n; x++) {
+			float sum = k[0] * in[off + x];
+			for (int j = 1; j < r; j++) {
+				int left = Math.max(0, x - j);
+				int right = Math.min(n - 1, x + j);
+				sum += k[j] * (in[off + left] + in[off + right]);
+			}
+			out[off + x] = sum;
+		}
+	}
+
+	// row y of the vertical convolution, as a weighted sum of whole rows
+	private static void accumulateRows(float[] h, int y, int nx, int ny, float[][] kernel, float[] line) {
+		if (kernel == null) {
+			System.arraycopy(h, y * nx, line, 0, nx);
+			return;
+		}
+		float[] k = kernel[0];
+		int center = y * nx;
+		for (int x = 0; x < nx; x++) {
+			line[x] = k[0] * h[center + x];
+		}
+		for (int j = 1; j < k.length; j++) {
+			int up = Math.max(0, y - j) * nx;
+			int down = Math.min(ny - 1, y + j) * nx;
+			float w = k[j];
+			for (int x = 0; x < nx; x++) {
+				line[x] += w * (h[up + x] + h[down + x]);
+			}
+		}
+	}
+
+	// scratch of one thread: the horizontal results of both scales and two output rows
+	private static class Buffers {
+		final float[] h1;
+		final float[] h2;
+		final float[] line1;
+		final float[] line2;
+
+		Buffers(int nx, int ny) {
+			h1 = new float[nx * ny];
+			h2 = new float[nx * ny];
+			line1 = new float[Math.max(nx, ny)];
+			line2 = new float[Math.max(nx, ny)];
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package ch.epfl.bii.ij2command.Utils;
+
+/*
+ *  In-place radix-2 complex FFT in double precision, for 1D signals
+ *  (ImageJ's FHT is 2D and in float). The length must be a power of 2.
+ */
+
+public class FFT {
+
+	// smallest power of 2 >= n
+	public static int size(int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	// forward transform (exp(-i...)), or inverse transform divided by the length
+	public static void transform(double[] re, double[] im, boolean inverse) {
+		int n = re.length;
+		if (Integer.bitCount(n) != 1 || im.length != n) {
+			throw new IllegalArgumentException("The length must be a power of 2");
+		}
+		// bit reversal permutation
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		// butterflies
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = (inverse ? 2 : -2) * Math.PI / len;
+			double wr = Math.cos(angle);
+			double wi = Math.sin(angle);
+			int half = len >> 1;
+			for (int i = 0; i < n; i += len) {
+				double cr = 1;
+				double ci = 0;
+				for (int k = 0; k < half; k++) {
+					int a = i + k;
+					int b = a + half;
+					double tr = re[b] * cr - im[b] * ci;
+					double ti = re[b] * ci + im[b] * cr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+					double nr = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = nr;
+				}
+			}
+		}
+		if (inverse) {
+			for (int i = 0; i < n; i++) {
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/*
+ *  Run a per-frame task over the time axis on a ForkJoinPool.
+ *
+ *  The frames [0, nt) are split recursively until one frame is left, so the
+ *  pool balances the work when some frames are slower than others. The task
+ *  must only read its frame from the ImageStack (stack.getProcessor(n)) and
+ *  never move the shared position of an ImagePlus (setSlice, setPosition).
+ *
+ *  There is one shared pool per parallelism level, kept for the next calls, so
+ *  the threads (and their ThreadLocal scratch buffers, see DogFilter) live across
+ *  the calls and the commands. The threads are daemons and stop when idle, the
+ *  pools do not need to be shut down. Callers running at the same time with the
+ *  same parallelism share the threads of the pool (see TirfBatch). A task that
+ *  calls run() itself is split in its own pool if it asks for the same parallelism.
+ */
+
+public class FrameParallel {
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+	// one thread per available core
+	public static int getDefaultParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	// call task.accept(t) for every frame t in [0, nt) with at most "parallelism" threads
+	public static void run(int nt, int parallelism, IntConsumer task) {
+		if (nt <= 0) {
+			return;
+		}
+		if (parallelism <= 1 || nt == 1) {
+			for (int t = 0; t < nt; t++) {
+				task.accept(t);
+			}
+			return;
+		}
+		Frames frames = new Frames(task, 0, nt);
+		// the idle threads of a pool stop after a while and are started again when needed
+		ForkJoinPool pool = POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+		if (ForkJoinTask.getPool() == pool) {
+			// nested loop, forked in the pool of the current task
+			frames.invoke();
+			return;
+		}
+		pool.invoke(frames);
+	}
+
+	private static class Frames extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final IntConsumer task;
+		private final int from;
+		private final int to;
+
+		Frames(IntConsumer task, int from, int to) {
+			this.task = task;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				task.accept(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Frames(task, from, mid), new Frames(task, mid, to));
+		}
+	}
+}
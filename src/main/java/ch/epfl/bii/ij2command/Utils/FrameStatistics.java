@@ -0,0 +1,151 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ *  Mean, min, max and standard deviation of every slice of a stack.
+ *
+ *  The stack is read once, slice after slice, straight from the pixel arrays
+ *  (no setSlice, no ImageProcessor, no histogram), so a virtual stack is read
+ *  only once too. The values are calibrated as getStatistics() does. An optional
+ *  mask restricts the measure to its non-zero pixels (foreground or background
+ *  of the frames), the same mask is used for every slice. NaN pixels are skipped.
+ */
+
+public class FrameStatistics {
+	private final double[] mean;
+	private final double[] min;
+	private final double[] max;
+	private final double[] sumSq;
+	private final long[] count;
+
+	private FrameStatistics(int n) {
+		mean = new double[n];
+		min = new double[n];
+		max = new double[n];
+		sumSq = new double[n];
+		count = new long[n];
+	}
+
+	// statistics of every slice of imp, mask (width*height, non-zero = measured) may be null
+	public static FrameStatistics measure(ImagePlus imp, byte[] mask) {
+		float[] ctable = imp.getBitDepth() == 32 ? null : imp.getCalibration().getCTable();
+		return measure(imp.getStack(), ctable, mask);
+	}
+
+	public static FrameStatistics measure(ImageStack stack, float[] ctable, byte[] mask) {
+		int n = stack.getSize();
+		FrameStatistics stats = new FrameStatistics(n);
+		for (int s = 0; s < n; s++) {
+			stats.add(s, stack.getPixels(s + 1), ctable, mask);
+		}
+		return stats;
+	}
+
+	// statistics of every frame of a mapped TIFF (raw values), the frames are read once in order
+	public static FrameStatistics measure(MappedTiff tiff, byte[] mask) {
+		int n = tiff.getSize();
+		FrameStatistics stats = new FrameStatistics(n);
+		float[] frame = null;
+		for (int s = 0; s < n; s++) {
+			frame = tiff.readFrame(s, frame);
+			stats.add(s, frame, null, mask);
+		}
+		return stats;
+	}
+
+	public int getSize() {
+		return mean.length;
+	}
+
+	public double[] getMean() {
+		return mean;
+	}
+
+	public double[] getMin() {
+		return min;
+	}
+
+	public double[] getMax() {
+		return max;
+	}
+
+	// number of measured pixels of slice s (zero-based)
+	public long getCount(int s) {
+		return count[s];
+	}
+
+	// sample standard deviation of slice s, as ImageStatistics.stdDev
+	public double getStdDev(int s) {
+		long k = count[s];
+		if (k < 2) {
+			return 0;
+		}
+		double var = (sumSq[s] - k * mean[s] * mean[s]) / (k - 1);
+		return Math.sqrt(Math.max(0, var));
+	}
+
+	private void add(int s, Object pixels, float[] ctable, byte[] mask) {
+		double sum = 0;
+		double sq = 0;
+		double lo = Double.MAX_VALUE;
+		double hi = -Double.MAX_VALUE;
+		long k = 0;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i = 0; i < p.length; i++) {
+				if (mask != null && mask[i] == 0) {
+					continue;
+				}
+				int b = p[i] & 0xff;
+				double v = (ctable == null) ? b : ctable[b];
+				sum += v;
+				sq += v * v;
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+				k++;
+			}
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i = 0; i < p.length; i++) {
+				if (mask != null && mask[i] == 0) {
+					continue;
+				}
+				int b = p[i] & 0xffff;
+				double v = (ctable == null) ? b : ctable[b];
+				sum += v;
+				sq += v * v;
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+				k++;
+			}
+		}
+		else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int i = 0; i < p.length; i++) {
+				if (mask != null && mask[i] == 0) {
+					continue;
+				}
+				double v = p[i];
+				if (Double.isNaN(v)) {
+					continue;
+				}
+				sum += v;
+				sq += v * v;
+				lo = Math.min(lo, v);
+				hi = Math.max(hi, v);
+				k++;
+			}
+		}
+		else {
+			throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit stacks are supported");
+		}
+		count[s] = k;
+		mean[s] = (k > 0) ? sum / k : Double.NaN;
+		min[s] = (k > 0) ? lo : Double.NaN;
+		max[s] = (k > 0) ? hi : Double.NaN;
+		sumSq[s] = sq;
+	}
+}
@@ -0,0 +1,222 @@
+package ch.epfl.bii.ij2command.Utils;
+
+/*
+ *  Sub-pixel localisation of a spot by a least-squares fit of an isotropic 2D Gaussian
+ *
+ *      f(x, y) = B + A exp(-((x - x0)^2 + (y - y0)^2) / (2 s^2))
+ *
+ *  on the (2*radius+1)^2 window around the pixel of a detected maximum
+ *  (Levenberg-Marquardt on the 5 parameters x0, y0, A, s, B). The coordinates are
+ *  pixel indices: a spot centered on pixel (x, y) is fitted at (x, y).
+ *
+ *  The window, the normal equations and the parameters are kept in the scratch
+ *  arrays of the thread: a fit allocates nothing, so many threads can fit the
+ *  spots of a movie with the same GaussianFit. The pixels outside of the image
+ *  (NaN values of the PixelSource) are left out of the fit.
+ */
+
+public class GaussianFit {
+	private static final int PARAMS = 5;
+	private static final int MAX_ITERATIONS = 30;
+	private final int radius;
+	private final double sigma;
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>();
+
+	// window of (2*radius+1)^2 pixels, sigma is the first guess of the width of the spots (pixels)
+	public GaussianFit(int radius, double sigma) {
+		this.radius = radius;
+		this.sigma = sigma;
+	}
+
+	// fit the spot at pixel (cx, cy) of frame n, result = {x0, y0, A, s, B}
+	// false if the fit failed (center more than 1 pixel away, negative amplitude...), result is then unchanged
+	public boolean fit(PixelSource pixels, int n, int cx, int cy, double[] result) {
+		Buffers b = buffers.get();
+		if (b == null) {
+			b = new Buffers(radius);
+			buffers.set(b);
+		}
+		// STEP 1. Window and first guess: the background is the min, the amplitude the center above it
+		int size = 0;
+		double min = Double.MAX_VALUE;
+		for (int y = cy - radius; y <= cy + radius; y++) {
+			for (int x = cx - radius; x <= cx + radius; x++) {
+				float v = pixels.getValue(n, x, y);
+				if (Float.isNaN(v) == false) {
+					b.xs[size] = x;
+					b.ys[size] = y;
+					b.values[size] = v;
+					min = Math.min(min, v);
+					size++;
+				}
+			}
+		}
+		float center = pixels.getValue(n, cx, cy);
+		if (size <= PARAMS || Float.isNaN(center)) {
+			return false;
+		}
+		double[] p = b.p;
+		p[0] = cx;
+		p[1] = cy;
+		p[2] = center - min;
+		p[3] = sigma;
+		p[4] = min;
+		// STEP 2. Levenberg-Marquardt iterations
+		double chi2 = normalEquations(b, size, p, true);
+		double damping = 1e-3;
+		for (int it = 0; it < MAX_ITERATIONS; it++) {
+			// (JtJ + damping*diag(JtJ)) delta = Jtr
+			for (int i = 0; i < PARAMS; i++) {
+				for (int j = 0; j < PARAMS; j++) {
+					b.a[i * PARAMS + j] = b.jtj[i * PARAMS + j];
+				}
+				b.a[i * PARAMS + i] *= 1 + damping;
+				b.delta[i] = b.jtr[i];
+			}
+			if (solve(b.a, b.delta) == false) {
+				return false;
+			}
+			for (int i = 0; i < PARAMS; i++) {
+				b.trial[i] = p[i] + b.delta[i];
+			}
+			double trial = normalEquations(b, size, b.trial, false);
+			if (trial < chi2) {
+				System.arraycopy(b.trial, 0, p, 0, PARAMS);
+				boolean converged = (chi2 - trial) <= 1e-9 * chi2;
+				chi2 = normalEquations(b, size, p, true);
+				damping = Math.max(1e-7, damping / 10);
+				if (converged) {
+					break;
+				}
+			}
+			else {
+				damping *= 10;
+				if (damping > 1e7) {
+					break;
+				}
+			}
+		}
+		// STEP 3. A spot of the window: the center stays within a pixel of the maximum
+		// (a fit pulled further is fitting a neighbor spot as well)
+		double s = Math.abs(p[3]);
+		if (p[2] <= 0 || s < 0.1 || s > radius || Math.abs(p[0] - cx) > 1 || Math.abs(p[1] - cy) > 1) {
+			return false;
+		}
+		result[0] = p[0];
+		result[1] = p[1];
+		result[2] = p[2];
+		result[3] = s;
+		result[4] = p[4];
+		return true;
+	}
+
+	// sum of the squared residuals at p, and JtJ, Jtr of the buffers if "jacobian"
+	private static double normalEquations(Buffers b, int size, double[] p, boolean jacobian) {
+		double x0 = p[0];
+		double y0 = p[1];
+		double a = p[2];
+		double s2 = p[3] * p[3];
+		double bg = p[4];
+		if (jacobian) {
+			for (int i = 0; i < PARAMS * PARAMS; i++) {
+				b.jtj[i] = 0;
+			}
+			for (int i = 0; i < PARAMS; i++) {
+				b.jtr[i] = 0;
+			}
+		}
+		double chi2 = 0;
+		double[] d = b.derivatives;
+		for (int k = 0; k < size; k++) {
+			double dx = b.xs[k] - x0;
+			double dy = b.ys[k] - y0;
+			double r2 = dx * dx + dy * dy;
+			double e = Math.exp(-r2 / (2 * s2));
+			double g = a * e;
+			double residual = b.values[k] - (bg + g);
+			chi2 += residual * residual;
+			if (jacobian) {
+				d[0] = g * dx / s2;
+				d[1] = g * dy / s2;
+				d[2] = e;
+				d[3] = g * r2 / (s2 * p[3]);
+				d[4] = 1;
+				for (int i = 0; i < PARAMS; i++) {
+					b.jtr[i] += d[i] * residual;
+					for (int j = 0; j <= i; j++) {
+						b.jtj[i * PARAMS + j] += d[i] * d[j];
+					}
+				}
+			}
+		}
+		if (jacobian) {
+			for (int i = 0; i < PARAMS; i++) {
+				for (int j = i + 1; j < PARAMS; j++) {
+					b.jtj[i * PARAMS + j] = b.jtj[j * PARAMS + i];
+				}
+			}
+		}
+		return chi2;
+	}
+
+	// solve a x = v in place (Gaussian elimination with partial pivoting), x in v
+	private static boolean solve(double[] a, double[] v) {
+		for (int c = 0; c < PARAMS; c++) {
+			int pivot = c;
+			for (int r = c + 1; r < PARAMS; r++) {
+				if (Math.abs(a[r * PARAMS + c]) > Math.abs(a[pivot * PARAMS + c])) {
+					pivot = r;
+				}
+			}
+			if (Math.abs(a[pivot * PARAMS + c]) < 1e-300) {
+				return false;
+			}
+			if (pivot != c) {
+				for (int j = 0; j < PARAMS; j++) {
+					double t = a[c * PARAMS + j];
+					a[c * PARAMS + j] = a[pivot * PARAMS + j];
+					a[pivot * PARAMS + j] = t;
+				}
+				double t = v[c];
+				v[c] = v[pivot];
+				v[pivot] = t;
+			}
+			for (int r = c + 1; r < PARAMS; r++) {
+				double f = a[r * PARAMS + c] / a[c * PARAMS + c];
+				for (int j = c; j < PARAMS; j++) {
+					a[r * PARAMS + j] -= f * a[c * PARAMS + j];
+				}
+				v[r] -= f * v[c];
+			}
+		}
+		for (int r = PARAMS - 1; r >= 0; r--) {
+			double sum = v[r];
+			for (int j = r + 1; j < PARAMS; j++) {
+				sum -= a[r * PARAMS + j] * v[j];
+			}
+			v[r] = sum / a[r * PARAMS + r];
+		}
+		return true;
+	}
+
+	// scratch of one thread: the window and the normal equations
+	private static class Buffers {
+		final int[] xs;
+		final int[] ys;
+		final double[] values;
+		final double[] p = new double[PARAMS];
+		final double[] trial = new double[PARAMS];
+		final double[] delta = new double[PARAMS];
+		final double[] derivatives = new double[PARAMS];
+		final double[] jtj = new double[PARAMS * PARAMS];
+		final double[] jtr = new double[PARAMS];
+		final double[] a = new double[PARAMS * PARAMS];
+
+		Buffers(int radius) {
+			int size = (2 * radius + 1) * (2 * radius + 1);
+			xs = new int[size];
+			ys = new int[size];
+			values = new double[size];
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.Arrays;
+
+/*
+ *  Cost of the links of a tracker, as a weighted sum of terms.
+ *
+ *  The features of the spots (sub-pixel position, intensity, value of the
+ *  orientation map, size) are measured once, into primitive columns indexed by
+ *  the id of the spot (Features). A term reads the columns it needs and adds its
+ *  cost for all the gated candidates of a spot in one loop, so the linking loop
+ *  only collects the candidates of a spot and calls evaluate(): a new term is a
+ *  new Term added to the cost, the linking loop does not change.
+ *
+ *  The terms of TirfTracking and ParticleTracking:
+ *  - distance(dmax): distance between the two positions / dmax
+ *  - difference(feature, scale): |feature of the candidate - feature of the spot| / scale
+ *  - value(feature, scale): feature of the candidate / scale
+ */
+
+public class LinkCost {
+	// features of a spot
+	public static final int X = 0;
+	public static final int Y = 1;
+	public static final int INTENSITY = 2;
+	public static final int ORIENTATION = 3;
+	public static final int SIZE = 4;
+	public static final int FEATURES = 5;
+
+	// the columns of the features of a set of spots
+	public interface Features {
+		// values of the feature for every spot id, the column may be longer than the number of spots
+		float[] getColumn(int feature);
+	}
+
+	// one term of the cost
+	public interface Term {
+		// costs[k] += weight * term(spot, to[k]) for k < n
+		void add(Features features, int spot, int[] to, int n, double weight, double[] costs);
+	}
+
+	private Term[] terms = new Term[0];
+	private double[] weights = new double[0];
+
+	// adds weight * term to the cost, the cost itself is returned to chain the terms
+	public LinkCost add(double weight, Term term) {
+		terms = Arrays.copyOf(terms, terms.length + 1);
+		weights = Arrays.copyOf(weights, weights.length + 1);
+		terms[terms.length - 1] = term;
+		weights[weights.length - 1] = weight;
+		return this;
+	}
+
+	// costs[k] = cost of the link between spot and to[k], for k < n (the terms of weight 0 are skipped)
+	public void evaluate(Features features, int spot, int[] to, int n, double[] costs) {
+		for (int k = 0; k < n; k++) {
+			costs[k] = 0;
+		}
+		for (int i = 0; i < terms.length; i++) {
+			if (weights[i] != 0) {
+				terms[i].add(features, spot, to, n, weights[i], costs);
+			}
+		}
+	}
+
+	public static Term distance(double dmax) {
+		return new Distance(dmax);
+	}
+
+	public static Term difference(int feature, double scale) {
+		return new Difference(feature, scale);
+	}
+
+	public static Term value(int feature, double scale) {
+		return new Value(feature, scale);
+	}
+
+	private static class Distance implements Term {
+		private final double dmax;
+
+		Distance(double dmax) {
+			this.dmax = dmax;
+		}
+
+		@Override
+		public void add(Features features, int spot, int[] to, int n, double weight, double[] costs) {
+			float[] x = features.getColumn(X);
+			float[] y = features.getColumn(Y);
+			float x0 = x[spot];
+			float y0 = y[spot];
+			for (int k = 0; k < n; k++) {
+				double dx = x0 - x[to[k]];
+				double dy = y0 - y[to[k]];
+				costs[k] += weight * (Math.sqrt(dx * dx + dy * dy) / dmax);
+			}
+		}
+	}
+
+	private static class Difference implements Term {
+		private final int feature;
+		private final double scale;
+
+		Difference(int feature, double scale) {
+			this.feature = feature;
+			this.scale = scale;
+		}
+
+		@Override
+		public void add(Features features, int spot, int[] to, int n, double weight, double[] costs) {
+			float[] f = features.getColumn(feature);
+			double f0 = f[spot];
+			for (int k = 0; k < n; k++) {
+				costs[k] += weight * Math.abs(f0 - f[to[k]]) / scale;
+			}
+		}
+	}
+
+	private static class Value implements Term {
+		private final int feature;
+		private final double scale;
+
+		Value(int feature, double scale) {
+			this.feature = feature;
+			this.scale = scale;
+		}
+
+		@Override
+		public void add(Features features, int spot, int[] to, int n, double weight, double[] costs) {
+			float[] f = features.getColumn(feature);
+			for (int k = 0; k < n; k++) {
+				costs[k] += weight * f[to[k]] / scale;
+			}
+		}
+	}
+
+	// feature columns of a fixed number of spots (ids 0 ... size-1)
+	public static class Columns implements Features {
+		private final float[][] columns = new float[FEATURES][];
+
+		public Columns(int size) {
+			for (int f = 0; f < FEATURES; f++) {
+				columns[f] = new float[size];
+				Arrays.fill(columns[f], Float.NaN);
+			}
+		}
+
+		public void set(int feature, int id, float value) {
+			columns[feature][id] = value;
+		}
+
+		@Override
+		public float[] getColumn(int feature) {
+			return columns[feature];
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+/*
+ *  Memory-mapped frames of an uncompressed 8-bit, 16-bit or 32-bit TIFF stack.
+ *
+ *  Only the TIFF headers are decoded (TiffDecoder, as IJ.openImage). The pixel
+ *  data are mapped with FileChannel.map, in segments of whole frames of at most
+ *  1 GB, and every frame is a view on its segment: nothing is read when the file
+ *  is opened, the pages of a frame are read by the OS when the frame is read
+ *  and stay in its page cache, not in the Java heap.
+ *
+ *  Both ImageJ stacks (one header, frames separated by a fixed gap) and files
+ *  with one header per frame are supported, as long as the strips of a frame
+ *  are contiguous. Compressed, signed, RGB and other types throw an IOException:
+ *  such files have to be opened with IJ.openImage / IJ.openVirtual.
+ */
+
+public class MappedTiff implements PixelSource, Closeable {
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final ByteOrder order;
+	private final Calibration cal;
+	// view on the bytes of every frame
+	private final ByteBuffer[] frames;
+
+	private MappedTiff(FileChannel channel, FileInfo fi, long[] offsets) throws IOException {
+		this.channel = channel;
+		width = fi.width;
+		height = fi.height;
+		bitDepth = 8 * fi.getBytesPerPixel();
+		order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		cal = new Calibration();
+		if (fi.pixelWidth > 0 && fi.unit != null) {
+			cal.pixelWidth = fi.pixelWidth;
+			cal.pixelHeight = fi.pixelHeight;
+			cal.pixelDepth = fi.pixelDepth;
+			cal.setUnit(fi.unit);
+		}
+		cal.frameInterval = fi.frameInterval;
+		long bytes = (long)width * height * fi.getBytesPerPixel();
+		long size = channel.size();
+		frames = new ByteBuffer[offsets.length];
+		// segments of consecutive frames
+		int first = 0;
+		while (first < offsets.length) {
+			long start = offsets[first];
+			long end = start + bytes;
+			int last = first + 1;
+			while (last < offsets.length && offsets[last] >= start && offsets[last] + bytes - start <= SEGMENT_SIZE) {
+				end = Math.max(end, offsets[last] + bytes);
+				last++;
+			}
+			if (end > size) {
+				throw new IOException("The pixel data end after the end of the file (truncated file?)");
+			}
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			for (int n = first; n < last; n++) {
+				ByteBuffer frame = segment.duplicate();
+				frame.position((int)(offsets[n] - start));
+				frame.limit((int)(offsets[n] - start + bytes));
+				frames[n] = frame.slice().order(order);
+			}
+			first = last;
+		}
+	}
+
+	// map the frames of the TIFF file, IOException if it cannot be mapped
+	public static MappedTiff open(Path path) throws IOException {
+		Path dir = path.toAbsolutePath().getParent();
+		FileInfo[] info = new TiffDecoder(dir.toString() + File.separator, path.getFileName().toString()).getTiffInfo();
+		if (info == null || info.length == 0) {
+			throw new IOException("No image in " + path);
+		}
+		FileInfo fi = info[0];
+		ArrayList<Long> offsets = new ArrayList<>();
+		long bytes = (long)fi.width * fi.height * fi.getBytesPerPixel();
+		for (FileInfo f : info) {
+			check(f, fi, path);
+			// one header for all the frames (ImageJ) or one header per frame
+			int n = (info.length == 1) ? Math.max(1, f.nImages) : 1;
+			for (int k = 0; k < n; k++) {
+				offsets.add(f.getOffset() + k * (bytes + f.gapBetweenImages));
+			}
+		}
+		long[] o = new long[offsets.size()];
+		for (int n = 0; n < o.length; n++) {
+			o[n] = offsets.get(n);
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new MappedTiff(channel, fi, o);
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void check(FileInfo f, FileInfo first, Path path) throws IOException {
+		if (f.compression != FileInfo.COMPRESSION_NONE) {
+			throw new IOException(path + " is compressed");
+		}
+		if (f.fileType != FileInfo.GRAY8 && f.fileType != FileInfo.GRAY16_UNSIGNED && f.fileType != FileInfo.GRAY32_FLOAT) {
+			throw new IOException(path + " is not an 8-bit, unsigned 16-bit or float 32-bit image");
+		}
+		if (f.width != first.width || f.height != first.height || f.fileType != first.fileType || f.intelByteOrder != first.intelByteOrder) {
+			throw new IOException("The frames of " + path + " have different sizes or types");
+		}
+		if (f.stripOffsets != null && f.stripLengths != null) {
+			long next = f.stripOffsets[0] & 0xffffffffL;
+			for (int s = 0; s < f.stripOffsets.length; s++) {
+				if ((f.stripOffsets[s] & 0xffffffffL) != next) {
+					throw new IOException("The strips of " + path + " are not contiguous");
+				}
+				next += f.stripLengths[s] & 0xffffffffL;
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getSize() {
+		return frames.length;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public Calibration getCalibration() {
+		return cal;
+	}
+
+	// zero-copy views of frame n (zero-based), in the byte order of the file
+	public ByteBuffer getBytes(int n) {
+		return frames[n].duplicate().order(order);
+	}
+
+	// the values are unsigned: & 0xffff
+	public ShortBuffer getShorts(int n) {
+		checkDepth(16);
+		return frames[n].duplicate().order(order).asShortBuffer();
+	}
+
+	public FloatBuffer getFloats(int n) {
+		checkDepth(32);
+		return frames[n].duplicate().order(order).asFloatBuffer();
+	}
+
+	private void checkDepth(int depth) {
+		if (bitDepth != depth) {
+			throw new IllegalStateException("The frames are " + bitDepth + "-bit");
+		}
+	}
+
+	// raw values of frame n in out (width*height, allocated if null)
+	public float[] readFrame(int n, float[] out) {
+		int size = width * height;
+		if (out == null) {
+			out = new float[size];
+		}
+		switch (bitDepth) {
+		case 8:
+			ByteBuffer b = frames[n];
+			for (int i = 0; i < size; i++) {
+				out[i] = b.get(i) & 0xff;
+			}
+			break;
+		case 16:
+			ShortBuffer s = getShorts(n);
+			for (int i = 0; i < size; i++) {
+				out[i] = s.get(i) & 0xffff;
+			}
+			break;
+		default:
+			getFloats(n).get(out, 0, size);
+		}
+		return out;
+	}
+
+	// value of pixel (x, y) in frame n (zero-based), NaN outside of the image
+	@Override
+	public float getValue(int n, int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			return Float.NaN;
+		}
+		int i = y * width + x;
+		ByteBuffer frame = frames[n];
+		switch (bitDepth) {
+		case 8:
+			return frame.get(i) & 0xff;
+		case 16:
+			return frame.getShort(2 * i) & 0xffff;
+		default:
+			return frame.getFloat(4 * i);
+		}
+	}
+
+	// the mapped frames stay readable until they are garbage collected
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
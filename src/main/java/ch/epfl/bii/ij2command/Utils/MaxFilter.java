@@ -0,0 +1,184 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.process.ImageProcessor;
+
+/*
+ *  Local maxima detection with a separable running max filter.
+ *
+ *  The (2*bd+1)^2 max filter is computed as a horizontal then a vertical 1D
+ *  running max with the van Herk / Gil-Werman algorithm (3 comparisons per
+ *  pixel whatever bd). Together with the max, the filter carries the number of
+ *  pixels reaching it (saturated at 2), so the "unique maximum" test does not
+ *  need a second scan of the window.
+ *
+ *  The result is the same as scanning the window with getPixelValue():
+ *  - a window leaving the image never gives a maximum (getPixelValue returns NaN),
+ *  - a NaN pixel in the window cancels the maximum (Math.max propagates NaN),
+ *  - the max starts at -1, so maxima below -1 are ignored,
+ *  - the maxima are listed with x as the outer loop and y as the inner loop.
+ */
+
+public class MaxFilter {
+
+	// find the local maxima of the processor, returns the pixel indices (y*width+x) in x-major order
+	// if unique is true, a maximum reached by more than one pixel of the window is rejected
+	public static int[] localMaxima(ImageProcessor ip, int bd, boolean unique) {
+		int nx = ip.getWidth();
+		int ny = ip.getHeight();
+		float[] data = toFloat(ip);
+		float[] max = new float[nx * ny];
+		byte[] count = new byte[nx * ny];
+		// scratch buffers of the 1D passes
+		int n = Math.max(nx, ny);
+		float[] gm = new float[n];
+		byte[] gc = new byte[n];
+		float[] hm = new float[n];
+		byte[] hc = new byte[n];
+		float[] lm = new float[n];
+		byte[] lc = new byte[n];
+		float[] om = new float[n];
+		byte[] oc = new byte[n];
+		// horizontal pass
+		for (int y = 0; y < ny; y++) {
+			int off = y * nx;
+			for (int x = 0; x < nx; x++) {
+				lm[x] = data[off + x];
+				lc[x] = 1;
+			}
+			runningMax(lm, lc, nx, bd, gm, gc, hm, hc, om, oc);
+			System.arraycopy(om, 0, max, off, nx);
+			System.arraycopy(oc, 0, count, off, nx);
+		}
+		// vertical pass
+		for (int x = 0; x < nx; x++) {
+			for (int y = 0; y < ny; y++) {
+				lm[y] = max[y * nx + x];
+				lc[y] = count[y * nx + x];
+			}
+			runningMax(lm, lc, ny, bd, gm, gc, hm, hc, om, oc);
+			for (int y = 0; y < ny; y++) {
+				max[y * nx + x] = om[y];
+				count[y * nx + x] = oc[y];
+			}
+		}
+		// mark the maxima in one row-major pass (pixels at the image border are skipped)
+		int b = Math.max(1, bd);
+		int[] found = new int[16];
+		int nfound = 0;
+		int[] perColumn = new int[nx + 1];
+		for (int y = b; y < ny - b; y++) {
+			int off = y * nx;
+			for (int x = b; x < nx - b; x++) {
+				float m = max[off + x];
+				if (data[off + x] == m && m >= -1 && (!unique || count[off + x] < 2)) {
+					if (nfound == found.length) {
+						found = java.util.Arrays.copyOf(found, 2 * nfound);
+					}
+					found[nfound++] = off + x;
+					perColumn[x + 1]++;
+				}
+			}
+		}
+		// counting sort by x to list the maxima in x-major order
+		for (int x = 0; x < nx; x++) {
+			perColumn[x + 1] += perColumn[x];
+		}
+		int[] out = new int[nfound];
+		for (int i = 0; i < nfound; i++) {
+			out[perColumn[found[i] % nx]++] = found[i];
+		}
+		return out;
+	}
+
+	// read the pixel values of the processor as getPixelValue() would return them
+	public static float[] toFloat(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		if (pixels instanceof float[]) {
+			return (float[])pixels;
+		}
+		int size = ip.getWidth() * ip.getHeight();
+		float[] out = new float[size];
+		float[] ctable = ip.getCalibrationTable();
+		if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i = 0; i < size; i++) {
+				out[i] = (ctable == null) ? (p[i] & 0xffff) : ctable[p[i] & 0xffff];
+			}
+		}
+		else if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i = 0; i < size; i++) {
+				out[i] = (ctable == null) ? (p[i] & 0xff) : ctable[p[i] & 0xff];
+			}
+		}
+		else {
+			for (int i = 0; i < size; i++) {
+				out[i] = ip.getPixelValue(i % ip.getWidth(), i / ip.getWidth());
+			}
+		}
+		return out;
+	}
+
+	// 1D running (max, count) over windows [c-r, c+r], van Herk / Gil-Werman
+	// the windows leaving [0, n-1] give NaN
+	private static void runningMax(float[] am, byte[] ac, int n, int r, float[] gm, byte[] gc, float[] hm, byte[] hc, float[] om, byte[] oc) {
+		int k = 2 * r + 1;
+		// prefix max inside each block of k samples
+		for (int i = 0; i < n; i++) {
+			if (i % k == 0) {
+				gm[i] = am[i];
+				gc[i] = ac[i];
+			}
+			else {
+				combine(gm[i - 1], gc[i - 1], am[i], ac[i], gm, gc, i);
+			}
+		}
+		// suffix max inside each block of k samples
+		for (int i = n - 1; i >= 0; i--) {
+			if (i % k == k - 1 || i == n - 1) {
+				hm[i] = am[i];
+				hc[i] = ac[i];
+			}
+			else {
+				combine(am[i], ac[i], hm[i + 1], hc[i + 1], hm, hc, i);
+			}
+		}
+		for (int c = 0; c < n; c++) {
+			int s = c - r;
+			int e = c + r;
+			if (s < 0 || e >= n) {
+				om[c] = Float.NaN;
+				oc[c] = 0;
+			}
+			else if (s % k == 0) {
+				// the window is exactly one block
+				om[c] = gm[e];
+				oc[c] = gc[e];
+			}
+			else {
+				// end of the block of s and beginning of the block of e
+				combine(hm[s], hc[s], gm[e], gc[e], om, oc, c);
+			}
+		}
+	}
+
+	// (max, count) of two disjoint sets of pixels, the count is saturated at 2
+	private static void combine(float m1, byte c1, float m2, byte c2, float[] om, byte[] oc, int i) {
+		if (m1 > m2) {
+			om[i] = m1;
+			oc[i] = c1;
+		}
+		else if (m2 > m1) {
+			om[i] = m2;
+			oc[i] = c2;
+		}
+		else if (m1 == m2) {
+			om[i] = m1;
+			oc[i] = (byte)Math.min(2, c1 + c2);
+		}
+		else {
+			om[i] = Float.NaN;
+			oc[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package ch.epfl.bii.ij2command.Utils;
+
+/*
+ *  Read-only random access to the pixel values of a sequence of frames,
+ *  either a whole stack in memory (StackPixels) or a sliding window of frames.
+ */
+
+public interface PixelSource {
+
+	// value of pixel (x, y) in frame n (zero-based), NaN outside of the image
+	public float getValue(int n, int x, int y);
+}
@@ -0,0 +1,136 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.HashMap;
+
+/*
+ *  Frame-to-frame linking of labeled regions (e.g. the nuclei of a movie), one
+ *  frame after the other, so a whole movie never has to be labeled at once.
+ *
+ *  Only the regions of the previous frame are kept. The candidates of a region
+ *  of the current frame are
+ *  - the previous regions it overlaps, cost 1 - IoU (intersection over union),
+ *    counted in one pass over the pixels of the two label images (a region
+ *    enclosing another one only counts its own pixels)
+ *  - the previous regions with a centroid at most maxDistance away (SpotGrid),
+ *    cost 1 + d / maxDistance, for the objects moving faster than their size
+ *  and the links are the sparse assignment (SparseAssignment) with a cost of 1
+ *  to end or to start a cell: an overlap is always preferred to a distance.
+ *  The current regions without a link start a new cell id (1, 2, ...).
+ */
+
+public class RegionTracker {
+	private final int width;
+	private final int height;
+	private final double maxDistance;
+	private int nextId = 1;
+	// previous frame: local index + 1 of the region of every pixel (0 = background)
+	private final int[] previous;
+	private int prevCount = 0;
+	private int[] prevIds = new int[0];
+	private double[] prevX = new double[0];
+	private double[] prevY = new double[0];
+	private long[] prevArea = new long[0];
+	private long[] prevPixels = new long[0];
+
+	public RegionTracker(int width, int height, double maxDistance) {
+		this.width = width;
+		this.height = height;
+		this.maxDistance = maxDistance;
+		previous = new int[width * height];
+	}
+
+	// link the regions first ... first + count - 1 of the label image regions[offset ...] (one frame)
+	// to the regions of the previous call. cx, cy, area: centroid and area of region first + k at k,
+	// the regions with an area of 0 are skipped. Returns the cell id of every region (-1 if skipped)
+	public int[] link(int[] regions, int offset, int first, int count, double[] cx, double[] cy, long[] area) {
+		// STEP 1. Overlaps of the previous and current regions, and the current label image
+		HashMap<Long, long[]> overlaps = new HashMap<>();
+		long[] pixels = new long[count];
+		long key = -1;
+		long[] overlap = null;
+		for (int i = 0; i < width * height; i++) {
+			int l = regions[offset + i] - first;
+			int c = (l >= 0 && l < count && area[l] > 0) ? l + 1 : 0;
+			int p = previous[i];
+			previous[i] = c;
+			if (c > 0) {
+				pixels[c - 1]++;
+			}
+			if (c == 0 || p == 0) {
+				continue;
+			}
+			// the pixels of a run share the same pair
+			long k = (long)(p - 1) * count + (c - 1);
+			if (k != key) {
+				key = k;
+				overlap = overlaps.get(k);
+				if (overlap == null) {
+					overlap = new long[1];
+					overlaps.put(k, overlap);
+				}
+			}
+			overlap[0]++;
+		}
+		// STEP 2. Candidate pairs: rows are the previous regions, cols the current ones
+		SparseAssignment assignment = new SparseAssignment(prevCount, count);
+		for (HashMap.Entry<Long, long[]> e : overlaps.entrySet()) {
+			int p = (int)(e.getKey() / count);
+			int c = (int)(e.getKey() % count);
+			long o = e.getValue()[0];
+			assignment.add(p, c, 1.0 - (double)o / (prevPixels[p] + pixels[c] - o));
+		}
+		if (prevCount > 0 && maxDistance > 0) {
+			int[] xs = new int[prevCount];
+			int[] ys = new int[prevCount];
+			for (int p = 0; p < prevCount; p++) {
+				xs[p] = (int)Math.round(prevX[p]);
+				ys[p] = (int)Math.round(prevY[p]);
+			}
+			SpotGrid grid = new SpotGrid(xs, ys, prevCount, (int)Math.ceil(maxDistance));
+			int[] candidates = new int[prevCount];
+			for (int c = 0; c < count; c++) {
+				if (area[c] == 0) {
+					continue;
+				}
+				// rounded grid coordinates, exact distance below
+				int n = grid.queryRadius(cx[c], cy[c], maxDistance + 1, candidates);
+				for (int j = 0; j < n; j++) {
+					int p = candidates[j];
+					double d = Math.sqrt((cx[c] - prevX[p]) * (cx[c] - prevX[p]) + (cy[c] - prevY[p]) * (cy[c] - prevY[p]));
+					if (prevArea[p] > 0 && d <= maxDistance && overlaps.containsKey((long)p * count + c) == false) {
+						assignment.add(p, c, 1.0 + d / maxDistance);
+					}
+				}
+			}
+		}
+		int[] links = assignment.solve(1, 1);
+		// STEP 3. Cell ids: from the linked previous region, or a new cell
+		int[] ids = new int[count];
+		for (int c = 0; c < count; c++) {
+			ids[c] = -1;
+		}
+		for (int p = 0; p < prevCount; p++) {
+			if (links[p] >= 0) {
+				ids[links[p]] = prevIds[p];
+			}
+		}
+		for (int c = 0; c < count; c++) {
+			if (ids[c] < 0 && area[c] > 0) {
+				ids[c] = nextId++;
+			}
+		}
+		// STEP 4. The current frame becomes the previous one
+		prevCount = count;
+		prevIds = ids;
+		prevX = cx.clone();
+		prevY = cy.clone();
+		prevArea = area.clone();
+		prevPixels = pixels;
+		return ids;
+	}
+
+	// number of cell ids given so far
+	public int getCellCount() {
+		return nextId - 1;
+	}
+}
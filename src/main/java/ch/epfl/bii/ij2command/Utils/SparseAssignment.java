@@ -0,0 +1,304 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.Arrays;
+
+/*
+ *  Sparse linear assignment with birth and death, used for frame-to-frame linking.
+ *
+ *  Rows are the spots of the current frame, columns the candidate spots of the
+ *  following frame(s). Only the gated (row, col) pairs are stored. The problem is
+ *  augmented as in Jaqaman et al. (2008):
+ *
+ *        | links      death |
+ *        | birth      links'|
+ *
+ *  where "death" is a diagonal block (row i ends its track, cost deathCost),
+ *  "birth" is a diagonal block (col j starts a new track, cost birthCost) and
+ *  links' is the transposed sparsity pattern of links with a zero cost. A row
+ *  is therefore linked to col j only if it is cheaper than deathCost + birthCost.
+ *
+ *  The augmented matrix is solved with the shortest augmenting path method of
+ *  Jonker-Volgenant on the sparse (CSR) structure, using Dijkstra with column
+ *  prices. Memory grows with the number of gated pairs, never with nrows*ncols.
+ */
+
+public class SparseAssignment {
+	private final int nrows;
+	private int ncols;
+	// gated pairs as triplets
+	private int nnz = 0;
+	private int[] erow;
+	private int[] ecol;
+	private double[] ecost;
+
+	// the number of cols grows with the largest col added
+	public SparseAssignment(int nrows) {
+		this(nrows, 0);
+	}
+
+	public SparseAssignment(int nrows, int ncols) {
+		this.nrows = nrows;
+		this.ncols = ncols;
+		int capacity = Math.max(16, 4 * nrows);
+		erow = new int[capacity];
+		ecol = new int[capacity];
+		ecost = new double[capacity];
+	}
+
+	// add a gated (row, col) pair, each pair must be added only once
+	public void add(int row, int col, double cost) {
+		if (row < 0 || row >= nrows || col < 0) {
+			throw new IllegalArgumentException("Pair (" + row + ", " + col + ") is out of the matrix with " + nrows + " rows");
+		}
+		ncols = Math.max(ncols, col + 1);
+		if (nnz == erow.length) {
+			int capacity = 2 * erow.length;
+			erow = Arrays.copyOf(erow, capacity);
+			ecol = Arrays.copyOf(ecol, capacity);
+			ecost = Arrays.copyOf(ecost, capacity);
+		}
+		erow[nnz] = row;
+		ecol[nnz] = col;
+		ecost[nnz] = cost;
+		nnz++;
+	}
+
+	public int getColumnCount() {
+		return ncols;
+	}
+
+	public int getPairCount() {
+		return nnz;
+	}
+
+	// solve the assignment, returns for every row the assigned col or -1 if the row dies
+	public int[] solve(double deathCost, double birthCost) {
+		int n = nrows + ncols;
+		// STEP 1. Build the augmented matrix in CSR form
+		int[] rowStart = new int[n + 1];
+		for (int e = 0; e < nnz; e++) {
+			rowStart[erow[e] + 1]++; // link
+			rowStart[nrows + ecol[e] + 1]++; // transposed link
+		}
+		for (int i = 0; i < n; i++) {
+			rowStart[i + 1]++; // death or birth
+		}
+		for (int i = 0; i < n; i++) {
+			rowStart[i + 1] += rowStart[i];
+		}
+		int[] cols = new int[rowStart[n]];
+		double[] costs = new double[rowStart[n]];
+		int[] fill = Arrays.copyOf(rowStart, n);
+		for (int e = 0; e < nnz; e++) {
+			int k = fill[erow[e]]++;
+			cols[k] = ecol[e];
+			costs[k] = ecost[e];
+			k = fill[nrows + ecol[e]]++;
+			cols[k] = ncols + erow[e];
+			costs[k] = 0;
+		}
+		for (int i = 0; i < nrows; i++) {
+			int k = fill[i]++;
+			cols[k] = ncols + i;
+			costs[k] = deathCost;
+		}
+		for (int j = 0; j < ncols; j++) {
+			int k = fill[nrows + j]++;
+			cols[k] = j;
+			costs[k] = birthCost;
+		}
+
+		// STEP 2. Greedy initialisation, each row takes its cheapest col if still free
+		int[] colOf = new int[n];
+		int[] rowOf = new int[n];
+		double[] rowCost = new double[n];
+		double[] v = new double[n];
+		Arrays.fill(colOf, -1);
+		Arrays.fill(rowOf, -1);
+		int[] free = new int[n];
+		int nfree = 0;
+		for (int i = 0; i < n; i++) {
+			int best = -1;
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+				if (best < 0 || costs[k] < costs[best]) {
+					best = k;
+				}
+			}
+			if (rowOf[cols[best]] < 0) {
+				rowOf[cols[best]] = i;
+				colOf[i] = cols[best];
+				rowCost[i] = costs[best];
+			}
+			else {
+				free[nfree++] = i;
+			}
+		}
+
+		// STEP 3. Shortest augmenting path (Dijkstra on reduced costs) for every free row
+		double[] dist = new double[n];
+		int[] pred = new int[n];
+		int[] predEntry = new int[n];
+		byte[] state = new byte[n]; // 0: untouched, 1: reached, 2: scanned
+		int[] touched = new int[n];
+		int[] scanned = new int[n];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		Heap heap = new Heap(64);
+		for (int f = 0; f < nfree; f++) {
+			int root = free[f];
+			int ntouched = 0;
+			int nscanned = 0;
+			heap.clear();
+			for (int k = rowStart[root]; k < rowStart[root + 1]; k++) {
+				int j = cols[k];
+				double d = costs[k] - v[j];
+				if (d < dist[j]) {
+					if (state[j] == 0) {
+						state[j] = 1;
+						touched[ntouched++] = j;
+					}
+					dist[j] = d;
+					pred[j] = root;
+					predEntry[j] = k;
+					heap.push(d, j);
+				}
+			}
+			int end = -1;
+			double mu = 0;
+			while (!heap.isEmpty()) {
+				double d = heap.topKey();
+				int j = heap.pop();
+				if (state[j] == 2 || d > dist[j]) {
+					continue; // outdated heap entry
+				}
+				state[j] = 2;
+				scanned[nscanned++] = j;
+				int i = rowOf[j];
+				if (i < 0) {
+					end = j;
+					mu = d;
+					break;
+				}
+				// reduced cost of the row currently holding j
+				double ui = rowCost[i] - v[j];
+				for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+					int c = cols[k];
+					if (state[c] == 2) {
+						continue;
+					}
+					double nd = d + costs[k] - v[c] - ui;
+					if (nd < dist[c]) {
+						if (state[c] == 0) {
+							state[c] = 1;
+							touched[ntouched++] = c;
+						}
+						dist[c] = nd;
+						pred[c] = i;
+						predEntry[c] = k;
+						heap.push(nd, c);
+					}
+				}
+			}
+			if (end < 0) {
+				throw new IllegalStateException("No feasible assignment found");
+			}
+			// update the prices of the scanned columns
+			for (int s = 0; s < nscanned; s++) {
+				int j = scanned[s];
+				v[j] += dist[j] - mu;
+			}
+			// augment along the path
+			int j = end;
+			while (true) {
+				int i = pred[j];
+				int previous = colOf[i];
+				rowOf[j] = i;
+				colOf[i] = j;
+				rowCost[i] = costs[predEntry[j]];
+				if (i == root) {
+					break;
+				}
+				j = previous;
+			}
+			// reset the work arrays
+			for (int s = 0; s < ntouched; s++) {
+				dist[touched[s]] = Double.POSITIVE_INFINITY;
+				state[touched[s]] = 0;
+			}
+		}
+
+		int[] assignment = new int[nrows];
+		for (int i = 0; i < nrows; i++) {
+			assignment[i] = (colOf[i] < ncols) ? colOf[i] : -1;
+		}
+		return assignment;
+	}
+
+	// binary min-heap of (key, col) pairs with lazy deletion
+	private static class Heap {
+		private double[] keys;
+		private int[] values;
+		private int size = 0;
+
+		Heap(int capacity) {
+			keys = new double[capacity];
+			values = new int[capacity];
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		double topKey() {
+			return keys[0];
+		}
+
+		void push(double key, int value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (keys[parent] <= key) {
+					break;
+				}
+				keys[i] = keys[parent];
+				values[i] = values[parent];
+				i = parent;
+			}
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		int pop() {
+			int top = values[0];
+			size--;
+			double key = keys[size];
+			int value = values[size];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (keys[child] >= key) {
+					break;
+				}
+				keys[i] = keys[child];
+				values[i] = values[child];
+				i = child;
+			}
+			keys[i] = key;
+			values[i] = value;
+			return top;
+		}
+	}
+}
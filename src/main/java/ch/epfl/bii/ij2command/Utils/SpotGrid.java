@@ -0,0 +1,99 @@
+package ch.epfl.bii.ij2command.Utils;
+
+/*
+ *  Uniform bucket grid over the spot coordinates of one frame.
+ *
+ *  The spots are sorted into square cells of `cellSize` pixels (counting sort,
+ *  stored in a compact "cell start + index" layout). A box query only visits
+ *  the cells overlapping the box, so the cost of a neighbourhood lookup grows
+ *  with the local density of spots instead of the total number of spots.
+ *
+ *  The grid only stores indices into the spot list of the frame. The caller
+ *  is expected to apply its own exact predicate (distance, bounds...) on the
+ *  returned candidates.
+ */
+
+public class SpotGrid {
+	private final int cellSize;
+	private final int xorigin;
+	private final int yorigin;
+	private final int ncx;
+	private final int ncy;
+	// spots of cell c are order[cellStart[c]] ... order[cellStart[c+1]-1]
+	private final int[] cellStart;
+	private final int[] order;
+	private final int n;
+
+	// build the grid from the coordinates of the n first spots
+	public SpotGrid(int[] xs, int[] ys, int n, int cellSize) {
+		this.cellSize = Math.max(1, cellSize);
+		this.n = n;
+		int xmin = 0, ymin = 0, xmax = 0, ymax = 0;
+		if (n > 0) {
+			xmin = xmax = xs[0];
+			ymin = ymax = ys[0];
+			for (int i = 1; i < n; i++) {
+				xmin = Math.min(xmin, xs[i]);
+				xmax = Math.max(xmax, xs[i]);
+				ymin = Math.min(ymin, ys[i]);
+				ymax = Math.max(ymax, ys[i]);
+			}
+		}
+		xorigin = xmin;
+		yorigin = ymin;
+		ncx = (xmax - xmin) / this.cellSize + 1;
+		ncy = (ymax - ymin) / this.cellSize + 1;
+		cellStart = new int[ncx * ncy + 1];
+		order = new int[n];
+		// count the spots of every cell
+		for (int i = 0; i < n; i++) {
+			cellStart[cell(xs[i], ys[i]) + 1]++;
+		}
+		for (int c = 0; c < ncx * ncy; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		// fill the cells, the spots of one cell stay in ascending index order
+		int[] fill = new int[ncx * ncy];
+		for (int i = 0; i < n; i++) {
+			int c = cell(xs[i], ys[i]);
+			order[cellStart[c] + fill[c]] = i;
+			fill[c]++;
+		}
+	}
+
+	private int cell(int x, int y) {
+		return ((y - yorigin) / cellSize) * ncx + (x - xorigin) / cellSize;
+	}
+
+	// number of indexed spots
+	public int size() {
+		return n;
+	}
+
+	// collect the indices of the spots lying in the cells overlapping [xmin, xmax] x [ymin, ymax]
+	// the buffer must hold at least size() elements, the number of candidates is returned
+	public int queryBox(int xmin, int ymin, int xmax, int ymax, int[] out) {
+		if (n == 0 || xmax < xmin || ymax < ymin) {
+			return 0;
+		}
+		int cx0 = Math.max(0, Math.floorDiv(xmin - xorigin, cellSize));
+		int cy0 = Math.max(0, Math.floorDiv(ymin - yorigin, cellSize));
+		int cx1 = Math.min(ncx - 1, Math.floorDiv(xmax - xorigin, cellSize));
+		int cy1 = Math.min(ncy - 1, Math.floorDiv(ymax - yorigin, cellSize));
+		int count = 0;
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				int c = cy * ncx + cx;
+				for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+					out[count++] = order[k];
+				}
+			}
+		}
+		return count;
+	}
+
+	// collect the candidates of a disk of radius r centered on (x, y)
+	public int queryRadius(double x, double y, double r, int[] out) {
+		return queryBox((int)Math.floor(x - r), (int)Math.floor(y - r), (int)Math.ceil(x + r), (int)Math.ceil(y + r), out);
+	}
+}
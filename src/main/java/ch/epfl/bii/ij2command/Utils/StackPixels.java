@@ -0,0 +1,84 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ *  Random-access view over the pixel arrays of an ImageStack.
+ *
+ *  The arrays of every slice are fetched once at construction (no copy for a
+ *  regular stack), so reading a value never moves the position of an ImagePlus
+ *  nor creates an ImageProcessor. getValue() returns the same value as
+ *  getPixelValue() on the processor of the slice, NaN outside of the image.
+ */
+
+public class StackPixels implements PixelSource {
+	private static final int BYTE = 0;
+	private static final int SHORT = 1;
+	private static final int FLOAT = 2;
+
+	private final Object[] slices;
+	private final int type;
+	private final int width;
+	private final int height;
+	private final float[] ctable;
+
+	// view over the stack of imp, with the calibration table of imp (as its processor)
+	public StackPixels(ImagePlus imp) {
+		this(imp.getStack(), imp.getBitDepth() == 32 ? null : imp.getCalibration().getCTable());
+	}
+
+	public StackPixels(ImageStack stack, float[] ctable) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		slices = new Object[stack.getSize()];
+		for (int n = 0; n < slices.length; n++) {
+			slices[n] = stack.getPixels(n + 1);
+		}
+		Object first = slices.length > 0 ? slices[0] : null;
+		if (first instanceof byte[]) {
+			type = BYTE;
+		}
+		else if (first instanceof short[]) {
+			type = SHORT;
+		}
+		else if (first instanceof float[]) {
+			type = FLOAT;
+		}
+		else {
+			throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit stacks are supported");
+		}
+		this.ctable = (type == FLOAT) ? null : ctable;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getSize() {
+		return slices.length;
+	}
+
+	// value of pixel (x, y) in slice n (zero-based, slice n+1 of the stack)
+	@Override
+	public float getValue(int n, int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			return Float.NaN;
+		}
+		int i = y * width + x;
+		switch (type) {
+		case BYTE:
+			int b = ((byte[])slices[n])[i] & 0xff;
+			return (ctable == null) ? b : ctable[b];
+		case SHORT:
+			int s = ((short[])slices[n])[i] & 0xffff;
+			return (ctable == null) ? s : ctable[s];
+		default:
+			return ((float[])slices[n])[i];
+		}
+	}
+}
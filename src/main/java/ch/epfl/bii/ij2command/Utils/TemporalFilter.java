@@ -0,0 +1,144 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ *  1D filter along t of the time series of every pixel.
+ *
+ *  The kernel is centered on its middle tap (index length/2 is the frame itself)
+ *  and applied as "Convolve..." does on a resliced stack: out(t) = sum_k w_k in(t+k-center),
+ *  the first and last frames being repeated outside of the stack. The frames are
+ *  read in place, row band by row band, so the time series of a band stay in cache
+ *  and the bands are filtered in parallel. No resliced (transposed) copy is made.
+ *
+ *  The frames of an ImageStack are not even copied: every band keeps the last
+ *  kernel-length frames of its rows in a ring, converted to float when first read,
+ *  and gives the filtered band of every frame to a Band callback.
+ */
+
+public class TemporalFilter {
+	// orientation filter of TirfTracking: weighted mean of the frames t+1 ... t+5
+	public static final float[] FUTURE = {0, 0, 0, 0, 0, 0, 3, 3, 4, 4, 5};
+
+	// receives the filtered pixels [from, to) of frame t, values[i - from] is pixel i
+	// (the array is reused for the next frame of the band)
+	public interface Band {
+		void accept(int t, int from, int to, float[] values);
+	}
+
+	private final float[] kernel;
+	private final int center;
+
+	// with normalize, the kernel is divided by the sum of its taps ("normalize" of Convolve)
+	public TemporalFilter(float[] kernel, boolean normalize) {
+		if (kernel.length % 2 == 0) {
+			throw new IllegalArgumentException("The kernel must have an odd number of taps");
+		}
+		float sum = 0;
+		for (float w : kernel) {
+			sum += w;
+		}
+		float scale = (normalize && sum != 0) ? 1 / sum : 1;
+		this.kernel = new float[kernel.length];
+		for (int k = 0; k < kernel.length; k++) {
+			this.kernel[k] = kernel[k] * scale;
+		}
+		center = kernel.length / 2;
+	}
+
+	// filter every frame, the frames of frames are width pixels wide
+	public float[][] filter(float[][] frames, int width, int parallelism) {
+		int nt = frames.length;
+		int size = (nt > 0) ? frames[0].length : 0;
+		float[][] out = new float[nt][size];
+		int rows = size / Math.max(1, width);
+		// bands of rows, several per thread to balance the load
+		int nbands = Math.max(1, Math.min(rows, 4 * Math.max(1, parallelism)));
+		FrameParallel.run(nbands, parallelism, b -> {
+			int from = (int)((long)rows * b / nbands) * width;
+			int to = (int)((long)rows * (b + 1) / nbands) * width;
+			for (int t = 0; t < nt; t++) {
+				filter(i -> frames[i], nt, t, from, to, out[t]);
+			}
+		});
+		return out;
+	}
+
+	// pixels [from, to) of frame t of the output, frame(i) gives the array of input frame i
+	public void filter(IntFunction<float[]> frame, int nt, int t, int from, int to, float[] out) {
+		for (int i = from; i < to; i++) {
+			out[i] = 0;
+		}
+		for (int k = 0; k < kernel.length; k++) {
+			float w = kernel[k];
+			if (w == 0) {
+				continue;
+			}
+			float[] in = frame.apply(Math.min(nt - 1, Math.max(0, t + k - center)));
+			for (int i = from; i < to; i++) {
+				out[i] += w * in[i];
+			}
+		}
+	}
+
+	// filter every slice of the stack, the bands are filtered in parallel and each band goes through
+	// the frames in order, so the memory used is the ring of kernel-length bands of every thread
+	public void filter(ImageStack stack, int parallelism, Band band) {
+		int nt = stack.getSize();
+		int width = stack.getWidth();
+		int rows = stack.getHeight();
+		int taps = kernel.length;
+		int nbands = Math.max(1, Math.min(rows, 4 * Math.max(1, parallelism)));
+		FrameParallel.run(nbands, parallelism, b -> {
+			int from = (int)((long)rows * b / nbands) * width;
+			int to = (int)((long)rows * (b + 1) / nbands) * width;
+			// frame i of the band is kept in ring[i % taps], the frames read for one output span less than taps frames
+			float[][] ring = new float[taps][to - from];
+			int[] loaded = new int[taps];
+			Arrays.fill(loaded, -1);
+			float[] out = new float[to - from];
+			for (int t = 0; t < nt; t++) {
+				filter(i -> {
+					int r = i % taps;
+					if (loaded[r] != i) {
+						readBand(stack, i, from, to, ring[r]);
+						loaded[r] = i;
+					}
+					return ring[r];
+				}, nt, t, 0, to - from, out);
+				band.accept(t, from, to, out);
+			}
+		});
+	}
+
+	// pixels [from, to) of frame t as float, the values of getPixelValue() without calibration
+	private static void readBand(ImageStack stack, int t, int from, int to, float[] band) {
+		Object pixels = stack.getPixels(t + 1);
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i = from; i < to; i++) {
+				band[i - from] = p[i] & 0xff;
+			}
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i = from; i < to; i++) {
+				band[i - from] = p[i] & 0xffff;
+			}
+		}
+		else if (pixels instanceof float[]) {
+			System.arraycopy((float[])pixels, from, band, 0, to - from);
+		}
+		else {
+			ImageProcessor ip = stack.getProcessor(t + 1);
+			int width = stack.getWidth();
+			for (int i = from; i < to; i++) {
+				band[i - from] = ip.getPixelValue(i % width, i / width);
+			}
+		}
+	}
+}
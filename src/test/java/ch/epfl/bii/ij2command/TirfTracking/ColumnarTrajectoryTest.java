@@ -0,0 +1,146 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ *  Round trip of ColumnarTrajectoryWriter and ColumnarTrajectoryReader: the tracks,
+ *  their speed and diffusion and the columns of every row are read back as written,
+ *  across several chunks.
+ */
+
+public class ColumnarTrajectoryTest {
+
+	private static ArrayList<ArrayList<int[]>> tracks(Random random, int count) {
+		ArrayList<ArrayList<int[]>> all = new ArrayList<>();
+		for (int k = 0; k < count; k++) {
+			ArrayList<int[]> points = new ArrayList<>();
+			int n = 1 + random.nextInt(100);
+			int t0 = random.nextInt(1000);
+			for (int i = 0; i < n; i++) {
+				points.add(new int[] {random.nextInt(512), random.nextInt(512) - 5, t0 + i});
+			}
+			all.add(points);
+		}
+		return all;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		Random random = new Random(1);
+		// more rows than one chunk, the ids are increasing with gaps
+		ArrayList<ArrayList<int[]>> all = tracks(random, 1600);
+		int[] ids = new int[all.size()];
+		double[] speeds = new double[all.size()];
+		double[] diffusions = new double[all.size()];
+		long rows = 0;
+		Path path = Files.createTempFile("trajectories", ".trj");
+		try {
+			try (ColumnarTrajectoryWriter writer = new ColumnarTrajectoryWriter(path)) {
+				for (int k = 0; k < all.size(); k++) {
+					ids[k] = 3 * k + random.nextInt(3);
+					speeds[k] = random.nextDouble();
+					diffusions[k] = (k % 10 == 0) ? Double.NaN : random.nextGaussian();
+					writer.writeTrack(ids[k], all.get(k), speeds[k], diffusions[k]);
+					rows += all.get(k).size();
+				}
+				assertEquals(rows, writer.getRows());
+			}
+			assertTrue(rows > ColumnarTrajectoryWriter.CHUNK_ROWS);
+			try (ColumnarTrajectoryReader reader = new ColumnarTrajectoryReader(path)) {
+				assertEquals(rows, reader.getRowCount());
+				assertEquals(all.size(), reader.getTrackCount());
+				long row = 0;
+				for (int k = 0; k < all.size(); k++) {
+					int id = ids[k];
+					assertEquals(id, reader.getTrackId(k));
+					assertEquals(k, reader.indexOf(id));
+					assertEquals(speeds[k], reader.getSpeed(id), 0);
+					assertEquals(diffusions[k], reader.getDiffusion(id), 0);
+					assertEquals(all.get(k).size(), reader.getLength(id));
+					ArrayList<int[]> points = reader.getTrack(id);
+					assertEquals(all.get(k).size(), points.size());
+					for (int i = 0; i < points.size(); i++) {
+						int[] p = all.get(k).get(i);
+						assertArrayEquals(p, points.get(i));
+						assertEquals(id, reader.getTrackOfRow(row));
+						assertEquals(p[0], reader.getX(row));
+						assertEquals(p[1], reader.getY(row));
+						assertEquals(p[2], reader.getT(row));
+						row++;
+					}
+				}
+				assertEquals(-1, reader.indexOf(-7));
+			}
+		}
+		finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	// the points of analyzeTrajectories() carry the id of the spot, only {x, y, t} is written
+	@Test
+	public void extraValuesAreIgnored() throws IOException {
+		ArrayList<int[]> points = new ArrayList<>();
+		points.add(new int[] {1, 2, 3, 40});
+		points.add(new int[] {4, 5, 6, 41});
+		Path path = Files.createTempFile("trajectories", ".trj");
+		try {
+			try (ColumnarTrajectoryWriter writer = new ColumnarTrajectoryWriter(path)) {
+				writer.writeTrack(0, points, 1, 2);
+			}
+			try (ColumnarTrajectoryReader reader = new ColumnarTrajectoryReader(path)) {
+				assertArrayEquals(new int[] {1, 2, 3}, reader.getTrack(0).get(0));
+				assertArrayEquals(new int[] {4, 5, 6}, reader.getTrack(0).get(1));
+			}
+		}
+		finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void emptyFile() throws IOException {
+		Path path = Files.createTempFile("trajectories", ".trj");
+		try {
+			new ColumnarTrajectoryWriter(path).close();
+			try (ColumnarTrajectoryReader reader = new ColumnarTrajectoryReader(path)) {
+				assertEquals(0, reader.getRowCount());
+				assertEquals(0, reader.getTrackCount());
+				assertEquals(-1, reader.indexOf(0));
+			}
+		}
+		finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	// the index is searched by id, the tracks must be written by increasing id
+	@Test
+	public void decreasingIdsAreRejected() throws IOException {
+		Path path = Files.createTempFile("trajectories", ".trj");
+		try (ColumnarTrajectoryWriter writer = new ColumnarTrajectoryWriter(path)) {
+			writer.writeTrack(5, new ArrayList<>(), 0, 0);
+			try {
+				writer.writeTrack(5, new ArrayList<>(), 0, 0);
+				fail("track 5 written twice");
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package ch.epfl.bii.ij2command.TirfTracking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ *  MSD of TrajectoryAnalysis against the mean over all the pairs of points of a track,
+ *  for the short tracks (pair by pair) and the long ones (FFT correlations), with
+ *  skipped frames, on the pixels and on the sub-pixel positions of a SpotTable.
+ */
+
+public class TrajectoryAnalysisTest {
+
+	// random walk of n points {x, y, t}, the frames can be skipped (links up to t+5)
+	private static ArrayList<int[]> walk(Random random, int n) {
+		ArrayList<int[]> points = new ArrayList<>();
+		int x = 250;
+		int y = 250;
+		int t = random.nextInt(20);
+		for (int i = 0; i < n; i++) {
+			points.add(new int[] {x, y, t});
+			x += random.nextInt(7) - 3;
+			y += random.nextInt(7) - 3;
+			t += (random.nextInt(4) == 0) ? 1 + random.nextInt(5) : 1;
+		}
+		return points;
+	}
+
+	// MSD of every lag from all the pairs, NaN without pairs; pairs[lag] is filled
+	private static double[] pairwise(double[] xs, double[] ys, int[] ts, int[] pairs) {
+		int n = ts.length;
+		int span = ts[n - 1] - ts[0] + 1;
+		double[] msd = new double[span];
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				double dx = xs[j] - xs[i];
+				double dy = ys[j] - ys[i];
+				msd[ts[j] - ts[i]] += dx * dx + dy * dy;
+				pairs[ts[j] - ts[i]]++;
+			}
+		}
+		pairs[0] = n;
+		for (int lag = 1; lag < span; lag++) {
+			msd[lag] = (pairs[lag] > 0) ? msd[lag] / pairs[lag] : Double.NaN;
+		}
+		return msd;
+	}
+
+	private static void check(TrajectoryAnalysis analysis, int k, double[] xs, double[] ys, int[] ts) {
+		int span = ts[ts.length - 1] - ts[0] + 1;
+		int[] pairs = new int[span];
+		double[] expected = pairwise(xs, ys, ts, pairs);
+		assertArrayEquals("pairs of track " + k, pairs, analysis.getPairs(k));
+		double[] msd = analysis.getMsd(k);
+		assertEquals(span, msd.length);
+		// the error of the FFT sums grows with the sum of the squared positions (relative to the first point)
+		double scale = 1;
+		for (int i = 0; i < xs.length; i++) {
+			scale += (xs[i] - xs[0]) * (xs[i] - xs[0]) + (ys[i] - ys[0]) * (ys[i] - ys[0]);
+		}
+		for (int lag = 0; lag < span; lag++) {
+			assertEquals("track " + k + ", lag " + lag, expected[lag], msd[lag], 1e-9 * scale / Math.max(1, pairs[lag]));
+		}
+	}
+
+	// tracks around FFT_POINTS points go through both methods
+	@Test
+	public void fftAndPairwiseGiveTheSameMsd() {
+		Random random = new Random(1);
+		ArrayList<ArrayList<int[]>> tracks = new ArrayList<>();
+		int[] lengths = {1, 2, 5, TrajectoryAnalysis.FFT_POINTS - 1, TrajectoryAnalysis.FFT_POINTS, TrajectoryAnalysis.FFT_POINTS + 1, 300, 1000};
+		for (int n : lengths) {
+			tracks.add(walk(random, n));
+		}
+		TrajectoryAnalysis analysis = TrajectoryAnalysis.analyze(tracks, 2);
+		assertEquals(tracks.size(), analysis.getCount());
+		for (int k = 0; k < tracks.size(); k++) {
+			ArrayList<int[]> points = tracks.get(k);
+			int n = points.size();
+			assertEquals(n, analysis.getPoints(k));
+			double[] xs = new double[n];
+			double[] ys = new double[n];
+			int[] ts = new int[n];
+			for (int i = 0; i < n; i++) {
+				xs[i] = points.get(i)[0];
+				ys[i] = points.get(i)[1];
+				ts[i] = points.get(i)[2];
+			}
+			check(analysis, k, xs, ys, ts);
+		}
+	}
+
+	// the points {x, y, t, id} are read at the sub-pixel positions of the table
+	@Test
+	public void subPixelPositions() {
+		Random random = new Random(2);
+		SpotTable table = new SpotTable();
+		ArrayList<ArrayList<int[]>> tracks = new ArrayList<>();
+		for (int n : new int[] {20, 200}) {
+			ArrayList<int[]> points = new ArrayList<>();
+			for (int[] p : walk(random, n)) {
+				int id = table.add(p[0], p[1], p[2]).getId();
+				table.setSubPixel(id, p[0] + random.nextFloat() - 0.5f, p[1] + random.nextFloat() - 0.5f);
+				points.add(new int[] {p[0], p[1], p[2], id});
+			}
+			tracks.add(points);
+		}
+		TrajectoryAnalysis analysis = TrajectoryAnalysis.analyze(tracks, table, 1);
+		for (int k = 0; k < tracks.size(); k++) {
+			ArrayList<int[]> points = tracks.get(k);
+			int n = points.size();
+			double[] xs = new double[n];
+			double[] ys = new double[n];
+			int[] ts = new int[n];
+			for (int i = 0; i < n; i++) {
+				int id = points.get(i)[3];
+				xs[i] = table.getSubX(id);
+				ys[i] = table.getSubY(id);
+				ts[i] = points.get(i)[2];
+			}
+			check(analysis, k, xs, ys, ts);
+		}
+	}
+
+	// D of MSD = 4 D lag on a long free random walk with steps of variance 2 D per axis
+	// (alpha is fitted up to a quarter of the track, too noisy on a single walk)
+	@Test
+	public void diffusionOfARandomWalk() {
+		Random random = new Random(3);
+		double d = 0.5;
+		double step = Math.sqrt(2 * d);
+		SpotTable table = new SpotTable();
+		ArrayList<int[]> points = new ArrayList<>();
+		double x = 250;
+		double y = 250;
+		for (int t = 0; t < 20000; t++) {
+			int id = table.add((int)Math.round(x), (int)Math.round(y), t).getId();
+			table.setSubPixel(id, (float)x, (float)y);
+			points.add(new int[] {(int)Math.round(x), (int)Math.round(y), t, id});
+			x += step * random.nextGaussian();
+			y += step * random.nextGaussian();
+		}
+		ArrayList<ArrayList<int[]>> tracks = new ArrayList<>();
+		tracks.add(points);
+		TrajectoryAnalysis analysis = TrajectoryAnalysis.analyze(tracks, table, 1);
+		assertEquals(d, analysis.getDiffusion()[0], 0.05 * d);
+		assertTrue(analysis.getStraightness()[0] < 0.1);
+	}
+}
@@ -0,0 +1,181 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/*
+ *  ConnectedComponents against a breadth-first flood fill started at every unlabeled
+ *  foreground pixel in the (z, y, x) order: the same labels, areas and bounds, with one
+ *  tile and with several tiles merged in parallel.
+ */
+
+public class ConnectedComponentsTest {
+
+	// flood fill labeling, the labels follow the order of the first pixels as in ConnectedComponents
+	private static int[] flood(byte[][] slices, int width, int height, int connectivity) {
+		int depth = slices.length;
+		int size = width * height;
+		int[] labels = new int[size * depth];
+		boolean diagonal = (connectivity == 8 || connectivity == 26);
+		boolean stack = (connectivity == 6 || connectivity == 26);
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		int count = 0;
+		for (int i = 0; i < labels.length; i++) {
+			if (slices[i / size][i % size] == 0 || labels[i] != 0) {
+				continue;
+			}
+			labels[i] = ++count;
+			queue.add(i);
+			while (!queue.isEmpty()) {
+				int p = queue.poll();
+				int x = p % width;
+				int y = (p / width) % height;
+				int z = p / size;
+				for (int dz = -1; dz <= 1; dz++) {
+					for (int dy = -1; dy <= 1; dy++) {
+						for (int dx = -1; dx <= 1; dx++) {
+							int steps = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+							if (steps == 0 || (dz != 0 && !stack) || (steps > 1 && !diagonal)) {
+								continue;
+							}
+							int nx = x + dx;
+							int ny = y + dy;
+							int nz = z + dz;
+							if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 || nz >= depth) {
+								continue;
+							}
+							int q = nz * size + ny * width + nx;
+							if (slices[nz][ny * width + nx] != 0 && labels[q] == 0) {
+								labels[q] = count;
+								queue.add(q);
+							}
+						}
+					}
+				}
+			}
+		}
+		return labels;
+	}
+
+	private static byte[][] random(Random random, int width, int height, int depth, double density) {
+		byte[][] slices = new byte[depth][width * height];
+		for (byte[] slice : slices) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (random.nextDouble() < density) ? (byte)255 : 0;
+			}
+		}
+		return slices;
+	}
+
+	private static void check(byte[][] slices, int width, int height, int connectivity, int parallelism) {
+		int[] expected = flood(slices, width, height, connectivity);
+		ConnectedComponents cc = ConnectedComponents.label(slices, width, height, connectivity, parallelism);
+		String name = "connectivity " + connectivity + ", parallelism " + parallelism;
+		assertArrayEquals(name, expected, cc.getLabels());
+		int count = 0;
+		for (int label : expected) {
+			count = Math.max(count, label);
+		}
+		assertEquals(name, count, cc.getCount());
+		// area and bounding box of every label
+		long[] area = new long[count + 1];
+		int[][] bounds = new int[count + 1][];
+		int size = width * height;
+		for (int i = 0; i < expected.length; i++) {
+			int label = expected[i];
+			if (label == 0) {
+				continue;
+			}
+			int x = i % width;
+			int y = (i / width) % height;
+			int z = i / size;
+			area[label]++;
+			if (bounds[label] == null) {
+				bounds[label] = new int[] {x, y, z, x, y, z};
+			}
+			int[] b = bounds[label];
+			b[0] = Math.min(b[0], x);
+			b[1] = Math.min(b[1], y);
+			b[2] = Math.min(b[2], z);
+			b[3] = Math.max(b[3], x);
+			b[4] = Math.max(b[4], y);
+			b[5] = Math.max(b[5], z);
+		}
+		for (int label = 1; label <= count; label++) {
+			assertEquals(name, area[label], cc.getArea(label));
+			assertArrayEquals(name, bounds[label], cc.getBounds(label));
+		}
+	}
+
+	// densities around the percolation threshold give long, branching components across the tiles
+	@Test
+	public void sameLabelsAsFloodFillIn2D() {
+		Random random = new Random(1);
+		for (double density : new double[] {0.3, 0.55, 0.7}) {
+			byte[][] slices = random(random, 61, 47, 1, density);
+			for (int connectivity : new int[] {4, 8}) {
+				for (int parallelism : new int[] {1, 3, 4}) {
+					check(slices, 61, 47, connectivity, parallelism);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sameLabelsAsFloodFillIn3D() {
+		Random random = new Random(2);
+		for (double density : new double[] {0.2, 0.35}) {
+			byte[][] slices = random(random, 23, 19, 9, density);
+			for (int connectivity : new int[] {4, 8, 6, 26}) {
+				for (int parallelism : new int[] {1, 4}) {
+					check(slices, 23, 19, connectivity, parallelism);
+				}
+			}
+		}
+	}
+
+	// a serpentine is a single component that goes through every tile and back
+	@Test
+	public void serpentineIsOneComponent() {
+		int n = 41;
+		byte[] pixels = new byte[n * n];
+		for (int y = 0; y < n; y += 2) {
+			for (int x = 0; x < n; x++) {
+				pixels[y * n + x] = (byte)255;
+			}
+			// the rows are joined at the right end, then at the left end
+			if (y + 1 < n) {
+				pixels[(y + 1) * n + ((y % 4 == 0) ? n - 1 : 0)] = (byte)255;
+			}
+		}
+		for (int parallelism : new int[] {1, 4}) {
+			check(new byte[][] {pixels}, n, n, 4, parallelism);
+		}
+		assertEquals(1, ConnectedComponents.label(new byte[][] {pixels}, n, n, 4, 4).getCount());
+	}
+
+	// only the pixels equal to 255 of an 8-bit image are foreground
+	@Test
+	public void foregroundOfImagesIs255() {
+		ByteProcessor ip = new ByteProcessor(5, 1);
+		ip.set(0, 255);
+		ip.set(1, 128);
+		ip.set(2, 255);
+		ip.set(3, 255);
+		ip.set(4, 1);
+		ConnectedComponents cc = ConnectedComponents.label(ip, 4, 1);
+		assertArrayEquals(new int[] {1, 0, 2, 2, 0}, cc.getLabels());
+		ImageStack stack = new ImageStack(5, 1);
+		stack.addSlice(ip);
+		stack.addSlice(ip.duplicate());
+		assertEquals(2, ConnectedComponents.label(stack, 6, 1).getCount());
+	}
+}
@@ -0,0 +1,112 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/*
+ *  MaxFilter.localMaxima() against the window scan of TirfTracking.localMax()
+ *  it replaced: the same maxima, in the same order.
+ */
+
+public class MaxFilterTest {
+
+	// the former localMax() of TirfTracking, returning the pixel indices
+	private static int[] scan(ImageProcessor ip, int bd) {
+		int nx = ip.getWidth();
+		int ny = ip.getHeight();
+		ArrayList<Integer> found = new ArrayList<>();
+		for (int x = 1; x < nx - 1; x++) {
+			for (int y = 1; y < ny - 1; y++) {
+				double v = ip.getPixelValue(x, y);
+				double max = -1;
+				for (int k = -bd; k <= bd; k++) {
+					for (int l = -bd; l <= bd; l++) {
+						max = Math.max(max, ip.getPixelValue(x + k, y + l));
+					}
+				}
+				int count = 0;
+				for (int k = -bd; k <= bd; k++) {
+					for (int l = -bd; l <= bd; l++) {
+						if (ip.getPixelValue(x + k, y + l) == max)
+							count++;
+					}
+				}
+				if (v == max && count < 2) {
+					found.add(y * nx + x);
+				}
+			}
+		}
+		int[] out = new int[found.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = found.get(i);
+		}
+		return out;
+	}
+
+	private static void check(ImageProcessor ip) {
+		for (int bd : new int[] {1, 2, 3, 7}) {
+			assertArrayEquals("bd " + bd, scan(ip, bd), MaxFilter.localMaxima(ip, bd, true));
+		}
+	}
+
+	// few grey levels, so that the windows often hold several maxima
+	@Test
+	public void sameMaximaOnFloatImages() {
+		Random random = new Random(1);
+		FloatProcessor ip = new FloatProcessor(53, 41);
+		for (int i = 0; i < 53 * 41; i++) {
+			ip.setf(i, random.nextInt(12) - 3);
+		}
+		check(ip);
+		for (int i = 0; i < 53 * 41; i++) {
+			ip.setf(i, (float)(100 * random.nextGaussian()));
+		}
+		check(ip);
+	}
+
+	@Test
+	public void sameMaximaOnIntegerImages() {
+		Random random = new Random(2);
+		ByteProcessor bp = new ByteProcessor(40, 37);
+		ShortProcessor sp = new ShortProcessor(37, 40);
+		for (int i = 0; i < 40 * 37; i++) {
+			bp.set(i, random.nextInt(6));
+			sp.set(i, random.nextInt(3000));
+		}
+		check(bp);
+		check(sp);
+	}
+
+	// a NaN pixel cancels the maxima of its windows
+	@Test
+	public void sameMaximaWithNaN() {
+		Random random = new Random(3);
+		FloatProcessor ip = new FloatProcessor(30, 30);
+		for (int i = 0; i < 30 * 30; i++) {
+			ip.setf(i, (random.nextInt(50) == 0) ? Float.NaN : random.nextInt(20));
+		}
+		check(ip);
+	}
+
+	// images smaller than the window give no maximum
+	@Test
+	public void sameMaximaOnSmallImages() {
+		Random random = new Random(4);
+		for (int size = 1; size <= 9; size++) {
+			FloatProcessor ip = new FloatProcessor(size, size + 2);
+			for (int i = 0; i < size * (size + 2); i++) {
+				ip.setf(i, random.nextInt(5));
+			}
+			check(ip);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package ch.epfl.bii.ij2command.Utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ *  SparseAssignment against an exhaustive search of the one-to-one links on small
+ *  random gated matrices: every row links one of its gated cols or dies, every col
+ *  not linked is born.
+ */
+
+public class SparseAssignmentTest {
+
+	// cost of a solution: the links plus deathCost per row and birthCost per col left out
+	private static double total(double[][] cost, int[] assignment, int ncols, double deathCost, double birthCost) {
+		boolean[] used = new boolean[ncols];
+		double sum = 0;
+		for (int i = 0; i < assignment.length; i++) {
+			int j = assignment[i];
+			if (j < 0) {
+				sum += deathCost;
+				continue;
+			}
+			assertTrue("row " + i + " is linked to a col that is not gated", !Double.isNaN(cost[i][j]));
+			assertTrue("col " + j + " is linked twice", !used[j]);
+			used[j] = true;
+			sum += cost[i][j];
+		}
+		for (int j = 0; j < ncols; j++) {
+			if (!used[j]) {
+				sum += birthCost;
+			}
+		}
+		return sum;
+	}
+
+	// lowest cost of all the solutions, rows i ... nrows-1 left to assign
+	private static double search(double[][] cost, int i, boolean[] used, double deathCost, double birthCost) {
+		if (i == cost.length) {
+			double sum = 0;
+			for (boolean u : used) {
+				sum += u ? 0 : birthCost;
+			}
+			return sum;
+		}
+		double best = deathCost + search(cost, i + 1, used, deathCost, birthCost);
+		for (int j = 0; j < used.length; j++) {
+			if (!used[j] && !Double.isNaN(cost[i][j])) {
+				used[j] = true;
+				best = Math.min(best, cost[i][j] + search(cost, i + 1, used, deathCost, birthCost));
+				used[j] = false;
+			}
+		}
+		return best;
+	}
+
+	// NaN for the pairs that are not gated
+	private static double[][] random(Random random, int nrows, int ncols, double density) {
+		double[][] cost = new double[nrows][ncols];
+		for (int i = 0; i < nrows; i++) {
+			for (int j = 0; j < ncols; j++) {
+				cost[i][j] = (random.nextDouble() < density) ? random.nextInt(20) / 4.0 : Double.NaN;
+			}
+		}
+		return cost;
+	}
+
+	private static int[] solve(double[][] cost, int ncols, double deathCost, double birthCost) {
+		SparseAssignment lap = new SparseAssignment(cost.length, ncols);
+		for (int i = 0; i < cost.length; i++) {
+			for (int j = 0; j < ncols; j++) {
+				if (!Double.isNaN(cost[i][j])) {
+					lap.add(i, j, cost[i][j]);
+				}
+			}
+		}
+		return lap.solve(deathCost, birthCost);
+	}
+
+	@Test
+	public void optimalOnRandomMatrices() {
+		Random random = new Random(1);
+		for (int run = 0; run < 500; run++) {
+			int nrows = random.nextInt(7);
+			int ncols = random.nextInt(7);
+			double[][] cost = random(random, nrows, ncols, 0.2 + 0.6 * random.nextDouble());
+			// alternative costs below, around and above the link costs
+			double deathCost = random.nextInt(12) / 4.0;
+			double birthCost = random.nextInt(12) / 4.0;
+			int[] assignment = solve(cost, ncols, deathCost, birthCost);
+			assertEquals(nrows, assignment.length);
+			double expected = search(cost, 0, new boolean[ncols], deathCost, birthCost);
+			assertEquals("run " + run, expected, total(cost, assignment, ncols, deathCost, birthCost), 1e-9);
+		}
+	}
+
+	// a link is kept only if it is cheaper than the death of its row plus the birth of its col
+	@Test
+	public void linkOnlyBelowDeathPlusBirth() {
+		double[][] cost = {{1.0, Double.NaN}, {Double.NaN, 3.0}};
+		assertArrayEquals(new int[] {0, 1}, solve(cost, 2, 2.0, 2.0));
+		assertArrayEquals(new int[] {0, -1}, solve(cost, 2, 1.0, 1.0));
+		assertArrayEquals(new int[] {-1, -1}, solve(cost, 2, 0.25, 0.25));
+	}
+
+	// the cheapest pair is not always linked, the sum of the frame is minimized
+	@Test
+	public void globalNotGreedy() {
+		double[][] cost = {{1.0, 2.0}, {1.5, 10.0}};
+		assertArrayEquals(new int[] {1, 0}, solve(cost, 2, 100, 100));
+	}
+
+	// rows without gated pairs die, cols without gated pairs are born
+	@Test
+	public void emptyRowsAndCols() {
+		assertArrayEquals(new int[0], new SparseAssignment(0).solve(1, 1));
+		assertArrayEquals(new int[] {-1, -1, -1}, new SparseAssignment(3).solve(1, 1));
+		SparseAssignment lap = new SparseAssignment(3, 5);
+		lap.add(1, 4, 0.5);
+		assertEquals(5, lap.getColumnCount());
+		assertArrayEquals(new int[] {-1, 4, -1}, lap.solve(1, 1));
+	}
+}